@@ -23,6 +23,8 @@ package ejsc;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 import ejsc.antlr.*;
@@ -33,6 +35,28 @@ import ejsc.ast_node.Node.*;
 
 public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 
+	// Source locations are only recorded if this is set.  Nothing but
+	// --estree can make use of them.
+	boolean trackLocations;
+
+	public ASTGenerator() {
+		this(true);
+	}
+
+	public ASTGenerator(boolean trackLocations) {
+		this.trackLocations = trackLocations;
+	}
+
+	void setSourceLocation(Node node, ParserRuleContext ctx) {
+		if (trackLocations)
+			node.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+	}
+
+	void setSourceLocation(Node node, String source, Token start, Token stop) {
+		if (trackLocations)
+			node.setSourceLocation(source, start, stop);
+	}
+
 	@Override
 	public Node visitProgram(ECMAScriptParser.ProgramContext ctx) {
 		List<IStatement> decls = new ArrayList<IStatement>();
@@ -107,7 +131,7 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 			varDeclList.add(varDecl);
 		}
 		VariableDeclaration node =  new VariableDeclaration(varDeclList);
-		node.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+		setSourceLocation(node, ctx);
 		return node;
 	}
 
@@ -122,10 +146,10 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 			initaliser = (IExpression) visit(ctx.initialiser());
 		}
 		Identifier id = new Identifier(name);
-		id.setSourceLocation(name, ctx.Identifier().getSymbol(), ctx.Identifier().getSymbol());
+		setSourceLocation(id, name, ctx.Identifier().getSymbol(), ctx.Identifier().getSymbol());
 		VariableDeclarator node =
 				new VariableDeclarator(id, initaliser);
-		node.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+		setSourceLocation(node, ctx);
 		return node;
 	}
 
@@ -161,7 +185,7 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 			alternate = (IStatement) visit(ctx.statement(1));
 		}
 		IfStatement ifstmt = new IfStatement(test, consequent, alternate);
-		ifstmt.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+		setSourceLocation(ifstmt, ctx);
 		return ifstmt;
 	}
 
@@ -787,7 +811,7 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 		Literal literal = (Literal) visitChildren(ctx);
 		if (literal == null) {
 			literal = new Literal(ctx.getText());
-			literal.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+			setSourceLocation(literal, ctx);
 		}
 		return literal;
 	}
@@ -820,7 +844,7 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 			// literal = new Literal((double) Integer.parseInt(numStr, 16), false);
 			literal = new Literal(stringToDouble(numStr, 16), false);
 		}
-		literal.setSourceLocation(ctx.getText(), ctx.start, ctx.stop);
+		setSourceLocation(literal, ctx);
 		return literal;
 	}
 
@@ -854,7 +878,7 @@ public class ASTGenerator extends ECMAScriptBaseVisitor<Node> {
 	@Override public Node visitIdentifierName(ECMAScriptParser.IdentifierNameContext ctx) {
 		String name = ctx.getText();
 		Identifier id = new Identifier(name);
-		id.setSourceLocation(name, ctx.start, ctx.stop);
+		setSourceLocation(id, name, ctx.start, ctx.stop);
 		return id;
 	}
 
@@ -19,13 +19,14 @@ Electro-communications, which was contributed by the following members.
   Hideya Iwasaki, 2012-14
 */
 package ejsc;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
-import ejsc.ControlFlowGraph.CFGNode;
-
 public class AvailableExpressionAnalyser {
     static class Value {}
     static class NumberValue extends Value {
@@ -141,50 +142,11 @@ public class AvailableExpressionAnalyser {
         }
     }
     
-    static class AvailableVals extends HashMap<Value, Set<Register>> {
-        public AvailableVals() {}
-        public AvailableVals(AvailableVals src) {
-            for (Value v: src.keySet())
-                put(v, new HashSet<Register>(src.get(v)));
-        }
-        public boolean put(Value v, Register r) {
-            Set<Register> rs = get(v);
-            if (rs == null) {
-                rs = new HashSet<Register>();
-                put(v, rs);
-            }
-            return rs.add(r);
-        }
-        public boolean addAll(AvailableVals other) {
-            boolean update = false;
-            for (Value v: other.keySet()) {
-                Set<Register> rs = get(v);
-                Set<Register> otherRs = other.get(v);
-                if (rs == null) {
-                    put(v, new HashSet<Register>(otherRs));
-                    update = true;
-                } else {
-                    update |= rs.addAll(otherRs);
-                }
-            }
-            return update;
-        }
-        @Override
-        public String toString() {
-            String s = "[";
-            for (Value v: keySet()) {
-                s += v + " => {";
-                for (Register r: get(v))
-                    s += "r" + r + " ";
-                s += "} ";
-            }
-            return s + "]";            
-        }
-    }
-    
+    // A fact is a pair of a constant value and a register holding it.
     ControlFlowGraph cfg;
-    HashMap<BCode, AvailableVals> ins = new HashMap<BCode, AvailableVals>();
-    HashMap<BCode, AvailableVals> outs = new HashMap<BCode, AvailableVals>();
+    BitVectorDataflow dataflow;
+    ArrayList<Register> registerOfFact = new ArrayList<Register>();
+    HashMap<Value, BitSet> factsOfValue = new HashMap<Value, BitSet>();
     
     public AvailableExpressionAnalyser(List<BCode> bcodes) {
         this(new ControlFlowGraph(bcodes));
@@ -192,68 +154,59 @@ public class AvailableExpressionAnalyser {
     
     public AvailableExpressionAnalyser(ControlFlowGraph cfg) {
         this.cfg = cfg;
+        int n = cfg.getNumberOfInstructions();
         
-        for (CFGNode node: cfg.getNodes()) {
-            BCode bc = node.getBCode();
-            ins.put(bc, new AvailableVals());
-            AvailableVals out = new AvailableVals();
-            Value genVal = computeGenValue(bc);
-            if (genVal != null)
-                out.put(genVal, bc.getDestRegister());
-            outs.put(bc, out);
-        }
-        
-        boolean update = true;
-        while (update) {
-            update = false;
-            
-            for (CFGNode node: cfg.getNodes()) {
-                BCode bc = node.getBCode();
-                AvailableVals out = outs.get(bc);
-                // in = ¥cap pred.out
-                AvailableVals in = new AvailableVals();
-                boolean first = true;
-                for (CFGNode pred: node.getPreds()) {
-                    AvailableVals predOut = outs.get(pred.getBCode());
-                    if (first) {
-                        for (Value v: predOut.keySet())
-                            in.put(v, new HashSet<Register>(predOut.get(v)));
-                        first = false;
-                        continue;
-                    }
-                    HashSet<Value> toRemove = new HashSet<Value>();
-                    for (Value v: in.keySet()) {
-                        Set<Register> rs = predOut.get(v);
-                        if (rs == null)
-                            toRemove.add(v);
-                        else {
-                            Set<Register> iRs = in.get(v);
-                            iRs.retainAll(rs);
-                            if (iRs.isEmpty())
-                                toRemove.add(v);
-                        }
-                    }
-                    for (Value v: toRemove)
-                        in.remove(v);
+        HashMap<Value, IdentityHashMap<Register, Integer>> factIndex = new HashMap<Value, IdentityHashMap<Register, Integer>>();
+        IdentityHashMap<Register, BitSet> factsOfRegister = new IdentityHashMap<Register, BitSet>();
+        int[] genFact = new int[n];
+        for (int i = 0; i < n; i++) {
+            genFact[i] = -1;
+            BCode bc = cfg.getBCode(i);
+            Value v = computeGenValue(bc);
+            if (v == null)
+                continue;
+            Register dst = bc.getDestRegister();
+            IdentityHashMap<Register, Integer> ofValue = factIndex.get(v);
+            if (ofValue == null) {
+                ofValue = new IdentityHashMap<Register, Integer>();
+                factIndex.put(v, ofValue);
+                factsOfValue.put(v, new BitSet());
+            }
+            Integer f = ofValue.get(dst);
+            if (f != null)
+                genFact[i] = f;
+            else {
+                genFact[i] = registerOfFact.size();
+                registerOfFact.add(dst);
+                ofValue.put(dst, genFact[i]);
+                factsOfValue.get(v).set(genFact[i]);
+                BitSet ofRegister = factsOfRegister.get(dst);
+                if (ofRegister == null) {
+                    ofRegister = new BitSet();
+                    factsOfRegister.put(dst, ofRegister);
                 }
-                ins.put(bc, new AvailableVals(in));
-                
-                // out += in - <?, destReg>
-                Register dst = bc.getDestRegister();
-                Value toRemove = null;
-                if (dst != null)
-                    for (Value v: in.keySet()) {
-                        Set<Register> rs = in.get(v);
-                        rs.remove(dst);
-                        if (rs.isEmpty())
-                            toRemove = v;
-                    }
-                if (toRemove != null)
-                    in.remove(toRemove);
-                if (out.addAll(in))
-                    update = true;
+                ofRegister.set(genFact[i]);
             }
         }
+        
+        // out = <v, dst> + (in - <?, dst>)
+        BitSet[] gen = new BitSet[n];
+        BitSet[] kill = new BitSet[n];
+        BitSet empty = new BitSet();
+        for (int i = 0; i < n; i++) {
+            if (genFact[i] >= 0) {
+                gen[i] = new BitSet();
+                gen[i].set(genFact[i]);
+            } else
+                gen[i] = empty;
+            BitSet k = null;
+            Register dst = cfg.getBCode(i).getDestRegister();
+            if (dst != null)
+                k = factsOfRegister.get(dst);
+            kill[i] = k == null ? empty : k;
+        }
+        dataflow = new BitVectorDataflow(cfg, BitVectorDataflow.Direction.FORWARD,
+                BitVectorDataflow.Meet.INTERSECTION, registerOfFact.size(), gen, kill);
     }
     
     public static Value computeGenValue(BCode bcx) {
@@ -273,8 +226,16 @@ public class AvailableExpressionAnalyser {
             return null;
     }
     
+    // registers holding v just before bc
     public Set<Register> getRegisterForValue(BCode bc, Value v) {
-        AvailableVals out = ins.get(bc);
-        return out.get(v);
+        BitSet ofValue = factsOfValue.get(v);
+        if (ofValue == null)
+            return null;
+        BitSet facts = (BitSet) dataflow.getIn(cfg.indexOf(bc)).clone();
+        facts.and(ofValue);
+        Set<Register> rs = new HashSet<Register>();
+        for (int f = facts.nextSetBit(0); f >= 0; f = facts.nextSetBit(f + 1))
+            rs.add(registerOfFact.get(f));
+        return rs;
     }
 }
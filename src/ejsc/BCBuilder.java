@@ -20,6 +20,8 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -41,10 +43,13 @@ class BCBuilder {
         int numberOfLocals;
         int numberOfGPRegisters;
         int numberOfArgumentRegisters = 0;
+        byte[] cacheKey;                      // key to store the code into BCodeCache
+        boolean restoredFromCache = false;
         
-        List<BCode> bcodes = new LinkedList<BCode>();
+        List<BCode> bcodes = new ArrayList<BCode>();
+        CompactCode compactCode;              // code held while bcodes is null (-opt-compact)
 
-        List<Label>   labelsSetJumpDest   = new LinkedList<Label>();
+        List<Label>   labelsSetJumpDest   = new ArrayList<Label>();
 
         void expandMacro() {
             int numberOfOutRegisters = NUMBER_OF_LINK_REGISTERS + numberOfArgumentRegisters + 1; /* + 1 for this-object register */
@@ -54,39 +59,111 @@ class BCBuilder {
             for (int i = 0; i < numberOfArgumentRegisters + 1; i++)
             	argRegs[i] = new Register(numberOfGPRegisters + NUMBER_OF_LINK_REGISTERS + i + 1); /* + 1 because of 1-origin */
             
-            for (int number = 0; number < bcodes.size(); ) {
-            	BCode bcode = bcodes.get(number);
-            	if (bcode instanceof MSetfl) {
-            		MSetfl msetfl = (MSetfl) bcode;
-            		ISetfl isetfl = new ISetfl(totalNumberOfRegisters);
-            		bcodes.set(number, isetfl);
-            		bcodes.get(number).addLabels(msetfl.getLabels());
-            		continue;
-            	} else if (bcode instanceof MCall) {
+            // Rewrites into a new list.  Labels of a removed instruction
+            // move to the first instruction that replaces it, or to the
+            // next one.
+            List<BCode> expanded = new ArrayList<BCode>(bcodes.size());
+            List<Label> pendingLabels = new ArrayList<Label>();
+            for (BCode bcode: bcodes) {
+            	bcode.addLabels(pendingLabels);
+            	pendingLabels.clear();
+            	int first = expanded.size();
+            	if (bcode instanceof MSetfl)
+            		expanded.add(new ISetfl(totalNumberOfRegisters));
+            	else if (bcode instanceof MCall) {
             		MCall mcall = (MCall) bcode;
-            		int pc = number;
-            		int nUseArgReg = mcall.args.length + 1;
-            		int thisRegOffset = numberOfArgumentRegisters + 1 - nUseArgReg; /* + 1 because of 1-origin */
-            		bcodes.remove(number);
-            		if (mcall.receiver != null)
-            			bcodes.add(pc++, new IMove(argRegs[thisRegOffset], mcall.receiver));
-            		for (int i = 0; i < mcall.args.length; i++)
-            			bcodes.add(pc++, new IMove(argRegs[thisRegOffset + 1 + i], mcall.args[i]));
-            		if (mcall.isNew)
-            			bcodes.add(pc++, new INewsend(mcall.function, mcall.args.length));
-            		else if (mcall.receiver == null)
-            			bcodes.add(pc++, new ICall(mcall.function, mcall.args.length));
+            		if (mcall.isTail)
+            			expandTailCall(mcall, argRegs, expanded);
             		else
-            			bcodes.add(pc++, new ISend(mcall.function, mcall.args.length));
-            		bcodes.get(number).addLabels(mcall.getLabels());
-            		continue;
+            			expandCall(mcall, argRegs, expanded);
             	} else if (bcode instanceof MParameter) {
-            		bcodes.remove(number);
-            		bcodes.get(number).addLabels(bcode.getLabels());
+            		pendingLabels.addAll(bcode.getLabels());
+            		continue;
+            	} else {
+            		expanded.add(bcode);
             		continue;
             	}
-            	number++;
+            	expanded.get(first).addLabels(bcode.getLabels());
             }
+            bcodes = expanded;
+        }
+
+        void expandCall(MCall mcall, Register[] argRegs, List<BCode> out) {
+            int nUseArgReg = mcall.args.length + 1;
+            int thisRegOffset = numberOfArgumentRegisters + 1 - nUseArgReg; /* + 1 because of 1-origin */
+            if (mcall.receiver != null)
+            	out.add(new IMove(argRegs[thisRegOffset], mcall.receiver));
+            for (int i = 0; i < mcall.args.length; i++)
+            	out.add(new IMove(argRegs[thisRegOffset + 1 + i], mcall.args[i]));
+            if (mcall.isNew)
+            	out.add(new INewsend(mcall.function, mcall.args.length));
+            else if (mcall.receiver == null)
+            	out.add(new ICall(mcall.function, mcall.args.length));
+            else
+            	out.add(new ISend(mcall.function, mcall.args.length));
+        }
+
+        // Arguments of a tail call are passed in $2, ..., $n+1 (and the
+        // receiver in $1) of the current register window, where the sources
+        // may reside.  Moves them in parallel.  The last two argument
+        // registers, which are above $n+1, are used as temporaries.
+        void expandTailCall(MCall mcall, Register[] argRegs, List<BCode> out) {
+            int firstDst = mcall.receiver == null ? 2 : 1;
+            int lastDst = mcall.args.length + 1;
+            ArrayList<Register> dsts = new ArrayList<Register>();
+            ArrayList<Register> srcs = new ArrayList<Register>();
+            if (mcall.receiver != null) {
+                dsts.add(new Register(1));
+                srcs.add(mcall.receiver);
+            }
+            for (int i = 0; i < mcall.args.length; i++) {
+                dsts.add(new Register(i + 2));
+                srcs.add(mcall.args[i]);
+            }
+
+            Register function = mcall.function;
+            int fn = function.getRegisterNumber();
+            if (firstDst <= fn && fn <= lastDst) {
+                Register save = argRegs[numberOfArgumentRegisters];
+                out.add(new IMove(save, function));
+                function = save;
+            }
+            while (!dsts.isEmpty()) {
+                boolean progress = false;
+                for (int i = 0; i < dsts.size(); ) {
+                    Register dst = dsts.get(i);
+                    if (dst.getRegisterNumber() == srcs.get(i).getRegisterNumber()) {
+                        dsts.remove(i);
+                        srcs.remove(i);
+                        continue;
+                    }
+                    boolean isSource = false;
+                    for (Register src: srcs)
+                        if (src.getRegisterNumber() == dst.getRegisterNumber())
+                            isSource = true;
+                    if (isSource)
+                        i++;
+                    else {
+                        out.add(new IMove(dst, srcs.get(i)));
+                        dsts.remove(i);
+                        srcs.remove(i);
+                        progress = true;
+                    }
+                }
+                if (!progress && !dsts.isEmpty()) {
+                    // Every remaining move is in a cycle.  Breaks one.
+                    Register dst = dsts.get(0);
+                    Register tmp = argRegs[numberOfArgumentRegisters - 1];
+                    out.add(new IMove(tmp, dst));
+                    for (int i = 0; i < srcs.size(); i++)
+                        if (srcs.get(i).getRegisterNumber() == dst.getRegisterNumber())
+                            srcs.set(i, tmp);
+                }
+            }
+            if (mcall.receiver == null)
+                out.add(new ITailcall(function, mcall.args.length));
+            else
+                out.add(new ITailsend(function, mcall.args.length));
         }
 
         void assignAddress() {
@@ -95,7 +172,7 @@ class BCBuilder {
         }
 
         List<BCode> build() {
-            List<BCode> result = new LinkedList<BCode>();
+            List<BCode> result = new ArrayList<BCode>(bcodes.size() + 4);
             result.add(new ICallentry(callEntry.dist(0)));
             result.add(new ISendentry(sendEntry.dist(0)));
             result.add(new INumberOfLocals(numberOfLocals));
@@ -133,6 +210,10 @@ class BCBuilder {
 
     int maxNumOfArgsOfCallingFunction = 0;
 
+    // names of global variable slots, output after funcLength; null unless
+    // global variables are accessed by slot
+    List<String> globalNames = null;
+
     void openFunctionBCBuilder() {
         FunctionBCBuilder bcb = new FunctionBCBuilder();
         fbStack.push(bcb);
@@ -145,7 +226,8 @@ class BCBuilder {
 
     void expandMacro() {
     	for (FunctionBCBuilder f: fBuilders)
-    		f.expandMacro();
+    		if (!f.restoredFromCache)
+    			f.expandMacro();
     }
  
     void assignAddress() {
@@ -155,8 +237,13 @@ class BCBuilder {
     
     List<BCode> build() {
         // build fBuilders.
-        List<BCode> result = new LinkedList<BCode>();
+        List<BCode> result = new ArrayList<BCode>();
         result.add(new IFuncLength(fBuilders.size()));
+        if (globalNames != null) {
+            result.add(new IGlobalLength(globalNames.size()));
+            for (String name : globalNames)
+                result.add(new IGlobalName(name));
+        }
         for (FunctionBCBuilder fb : fBuilders) {
             result.addAll(fb.build());
         }
@@ -211,14 +298,71 @@ class BCBuilder {
     	return sb.toString();
     }
     
+    // Replace the code of functions found in the cache with the cached
+    // code.  This should be called before optimisation.
+    void lookupCache(BCodeCache cache, Main.Info info) {
+        boolean global = true;
+        for (BCBuilder.FunctionBCBuilder fb : fBuilders) {
+            byte[] key = BCodeCache.computeKey(fb, !global, info);
+            global = false;
+            ByteBuffer value = cache.lookup(key);
+            if (value != null) {
+                BCodeCache.restore(fb, value);
+                fb.restoredFromCache = true;
+            } else
+                fb.cacheKey = key;
+        }
+    }
+
+    // Store the code of functions not found by lookupCache.  This should
+    // be called after macro expansion and address assignment.
+    void storeCache(BCodeCache cache) {
+        for (BCBuilder.FunctionBCBuilder fb : fBuilders)
+            if (fb.cacheKey != null)
+                cache.store(fb.cacheKey, BCodeCache.encode(fb));
+    }
+
+    // Hold the code of the functions to be optimised in CompactCode.
+    // Each function is expanded only during its own passes.
+    void compactCode() {
+        boolean global = true;
+        for (BCBuilder.FunctionBCBuilder fb : fBuilders) {
+            if (global) {
+                global = false;
+                continue;
+            }
+            if (fb.restoredFromCache)
+                continue;
+            fb.compactCode = new CompactCode(fb.bcodes, fb.callEntry, fb.sendEntry);
+            fb.bcodes = null;
+        }
+    }
+
+    void uncompactCode() {
+        for (BCBuilder.FunctionBCBuilder fb : fBuilders) {
+            if (fb.compactCode != null) {
+                fb.bcodes = fb.compactCode.toBCodes();
+                fb.compactCode = null;
+            }
+        }
+    }
+
     // optimisation method
     void optimisation(Main.Info info) {
+        if (info.optCompactCode)
+            compactCode();
         boolean global = true;
         for (BCBuilder.FunctionBCBuilder fb : fBuilders) {
             if (global) {
                 global = false;
                 continue;
             }
+            if (fb.restoredFromCache)
+                continue;
+            if (fb.compactCode != null) {
+                fb.bcodes = fb.compactCode.toBCodes();
+                fb.compactCode = null;
+            }
 
             if (info.optPrintOptimisation) {
                 System.out.println("====== before optimisation ======");
@@ -234,6 +378,15 @@ class BCBuilder {
                 }
             }
 
+            if (info.optLoopInvariantCodeMotion) {
+                LoopInvariantCodeMotion licm = new LoopInvariantCodeMotion(fb.bcodes);
+                fb.bcodes = licm.exec();
+                if (info.optPrintOptimisation) {
+                    System.out.println("====== after licm ======");
+                    System.out.println(fb);
+                }
+            }
+
             if (info.optCommonConstantElimination) {
                 CommonConstantElimination cce = new CommonConstantElimination(fb.bcodes);
                 fb.bcodes = cce.exec();
@@ -307,6 +460,11 @@ class BCBuilder {
                 }
             }
 
+            if (info.optCompactCode) {
+                fb.compactCode = new CompactCode(fb.bcodes, fb.callEntry, fb.sendEntry);
+                fb.bcodes = null;
+            }
         	}
+        uncompactCode();
     }
 }
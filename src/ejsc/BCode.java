@@ -21,7 +21,6 @@
 */
 
 package ejsc;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -62,21 +61,37 @@ public class BCode {
     		return dst;
     }
 
+    public void setDestRegister(Register dst) {
+    		this.dst = dst;
+    }
+
+    /*
+     * Source registers, numbered from 0 in the order of the fields.
+     * Instructions with source registers override these.
+     */
+    public int getNumberOfUses() {
+    		return 0;
+    }
+
+    public Register getUse(int i) {
+    		throw new Error("no source register: " + this);
+    }
+
+    public void setUse(int i, Register r) {
+    		throw new Error("no source register: " + this);
+    }
+
     public HashSet<Register> getSrcRegisters() {
 	    	HashSet<Register> srcs = new HashSet<Register>();
-	    	Class<? extends BCode> c = getClass();
-	    	for (Field f: c.getDeclaredFields()) {
-	    		if (f.getType() == Register.class) {
-	    			try {
-	    				srcs.add((Register) f.get(this));
-	    			} catch (Exception e) {
-	    				throw new Error(e);
-	    			}
-	    		}
-	    	}
-	    	
+	    	for (int i = 0; i < getNumberOfUses(); i++)
+	    		srcs.add(getUse(i));
 	    	return srcs;
     	}
+
+    // Redirects the branch of a jump instruction.
+    void setBranchLabel(Label label) {
+    		throw new Error("not a branch: " + this);
+    }
     
     String toString(String opcode) {
         return opcode;
@@ -120,6 +135,14 @@ public class BCode {
         return opcode + " " + op1 + " " + op2;
     }
 
+    String toString(String opcode, int op1, Register op2) {
+        return opcode + " " + op1 + " " + op2;
+    }
+
+    String toString(String opcode, String op1) {
+        return opcode + " " + op1;
+    }
+
     String toString(String opcode, Register op1, int op2, String op3) {
         return opcode + " " + op1 + " " + op2 + " " + op3;
     }
@@ -237,6 +260,21 @@ class IAdd extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("add", dst, src1, src2);
     }
@@ -248,6 +286,21 @@ class ISub extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("sub", dst, src1, src2);
     }
@@ -259,6 +312,21 @@ class IMul extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("mul", dst, src1, src2);
     }
@@ -270,6 +338,21 @@ class IDiv extends BCode {
     		this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("div", dst, src1, src2);
     }
@@ -281,6 +364,21 @@ class IMod extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("mod", dst, src1, src2);
     }
@@ -292,6 +390,21 @@ class IBitor extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("bitor", dst, src1, src2);
     }
@@ -303,6 +416,21 @@ class IBitand extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("bitand", dst, src1, src2);
     }
@@ -314,6 +442,21 @@ class ILeftshift extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("leftshift", dst, src1, src2);
     }
@@ -325,6 +468,21 @@ class IRightshift extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("rightshift", dst, src1, src2);
     }
@@ -336,6 +494,21 @@ class IUnsignedrightshift extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("unsignedrightshift", dst, src1, src2);
     }
@@ -349,6 +522,21 @@ class IEqual extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("equal", dst, src1, src2);
     }
@@ -360,6 +548,21 @@ class IEq extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("eq", dst, src1, src2);
     }
@@ -371,6 +574,21 @@ class ILessthan extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("lessthan", dst, src1, src2);
     }
@@ -382,6 +600,21 @@ class ILessthanequal extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("lessthanequal", dst, src1, src2);
     }
@@ -392,6 +625,18 @@ class INot extends BCode {
 		super(dst);
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("not", dst, src);
     }
@@ -432,6 +677,18 @@ class IGetglobal extends BCode {
 		super(dst);
         this.lit = lit;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return lit;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        lit = r;
+    }
     public String toString() {
         return super.toString("getglobal", dst, lit);
     }
@@ -442,10 +699,58 @@ class ISetglobal extends BCode {
         this.lit = lit;
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? lit : src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            lit = r;
+        else
+            src = r;
+    }
     public String toString() {
         return super.toString("setglobal", lit, src);
     }
 }
+class IGetglobalslot extends BCode {
+    int idx;
+    IGetglobalslot(Register dst, int idx) {
+		super(dst);
+        this.idx = idx;
+    }
+    public String toString() {
+        return super.toString("getglobalslot", dst, idx);
+    }
+}
+class ISetglobalslot extends BCode {
+    int idx;
+    Register src;
+    ISetglobalslot(int idx, Register src) {
+        this.idx = idx;
+        this.src = src;
+    }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
+    public String toString() {
+        return super.toString("setglobalslot", idx, src);
+    }
+}
 class IGetlocal extends BCode {
     int depth, n;
     IGetlocal(Register dst, int depth, int n) {
@@ -465,6 +770,18 @@ class ISetlocal extends BCode {
         this.n = n;
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("setlocal", depth, n, src);
     }
@@ -488,6 +805,18 @@ class ISetarg extends BCode {
         this.n = n;
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("setarg", depth, n, src);
     }
@@ -499,6 +828,21 @@ class IGetprop extends BCode {
         this.obj = obj;
         this.prop = prop;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? obj : prop;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            obj = r;
+        else
+            prop = r;
+    }
     public String toString() {
         return super.toString("getprop", dst, obj, prop);
     }
@@ -510,6 +854,26 @@ class ISetprop extends BCode {
         this.prop = prop;
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 3;
+    }
+    @Override
+    public Register getUse(int i) {
+        switch (i) {
+        case 0: return obj;
+        case 1: return prop;
+        default: return src;
+        }
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        switch (i) {
+        case 0: obj = r; break;
+        case 1: prop = r; break;
+        default: src = r; break;
+        }
+    }
     public String toString() {
         return super.toString("setprop", obj, prop, src);
     }
@@ -523,6 +887,21 @@ class ISetarray extends BCode {
         this.n = n;
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? ary : src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            ary = r;
+        else
+            src = r;
+    }
     public String toString() {
         return super.toString("setarray", ary, n, src);
     }
@@ -554,6 +933,18 @@ class ISeta extends BCode {
     ISeta(Register src) {
     		this.src = src;
     	}
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("seta", src);
     }
@@ -577,6 +968,18 @@ class IMove extends BCode {
 		super(dst);
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("move", dst, src);
     }
@@ -588,6 +991,18 @@ class IIsundef extends BCode {
 		super(dst);
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("isundef", dst, src);
     }
@@ -598,6 +1013,18 @@ class IIsobject extends BCode {
 		super(dst);
         this.src = src;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return src;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        src = r;
+    }
     public String toString() {
         return super.toString("isobject", dst, src);
     }
@@ -609,6 +1036,21 @@ class IInstanceof extends BCode {
         this.src1 = src1;
         this.src2 = src2;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? src1 : src2;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            src1 = r;
+        else
+            src2 = r;
+    }
     public String toString() {
         return super.toString("instanceof", dst, src1, src2);
     }
@@ -622,6 +1064,18 @@ class ICall extends BCode {
         this.callee = callee;
         this.numOfArgs = numOfArgs;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return callee;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        callee = r;
+    }
     public String toString() {
         return super.toString("call", callee, numOfArgs);
     }
@@ -633,16 +1087,94 @@ class ISend extends BCode {
         this.callee = callee;
         this.numOfArgs = numOfArgs;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return callee;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        callee = r;
+    }
     public String toString() {
         return super.toString("send", callee, numOfArgs);
     }
 }
+class ITailcall extends BCode {
+    Register callee;
+    int numOfArgs;
+    ITailcall(Register callee, int numOfArgs) {
+        this.callee = callee;
+        this.numOfArgs = numOfArgs;
+    }
+    @Override
+    public boolean isFallThroughInstruction() {
+        return false;
+    }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return callee;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        callee = r;
+    }
+    public String toString() {
+        return super.toString("tailcall", callee, numOfArgs);
+    }
+}
+class ITailsend extends BCode {
+    Register callee;
+    int numOfArgs;
+    ITailsend(Register callee, int numOfArgs) {
+        this.callee = callee;
+        this.numOfArgs = numOfArgs;
+    }
+    @Override
+    public boolean isFallThroughInstruction() {
+        return false;
+    }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return callee;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        callee = r;
+    }
+    public String toString() {
+        return super.toString("tailsend", callee, numOfArgs);
+    }
+}
 class INew extends BCode {
     Register constructor;
     INew(Register dst, Register constructor) {
 		super(dst);
         this.constructor = constructor;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return constructor;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        constructor = r;
+    }
     public String toString() {
         return super.toString("new", dst, constructor);
     }
@@ -654,6 +1186,18 @@ class INewsend extends BCode {
         this.constructor = constructor;
         this.numOfArgs = numOfArgs;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return constructor;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        constructor = r;
+    }
     public String toString() {
         return super.toString("newsend", constructor, numOfArgs);
     }
@@ -664,6 +1208,18 @@ class IMakeiterator extends BCode {
 		super(dst);
         this.obj = obj;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return obj;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        obj = r;
+    }
     public String toString() {
         return super.toString("makeiterator", obj, dst);
     }
@@ -675,6 +1231,21 @@ class INextpropname extends BCode {
         this.obj = obj;
         this.ite = ite;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 2;
+    }
+    @Override
+    public Register getUse(int i) {
+        return i == 0 ? obj : ite;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        if (i == 0)
+            obj = r;
+        else
+            ite = r;
+    }
     public String toString() {
         return super.toString("nextpropname", obj, ite, dst);
     }
@@ -692,6 +1263,10 @@ class IJump extends BCode {
     		return false;
     }
     @Override
+    void setBranchLabel(Label label) {
+    		this.label = label;
+    }
+    @Override
     public BCode getBranchTarget() {
     		return label.getDestBCode();
     }
@@ -707,9 +1282,25 @@ class IJumptrue extends BCode {
         this.label = label;
     }
     @Override
+    void setBranchLabel(Label label) {
+    		this.label = label;
+    }
+    @Override
     public BCode getBranchTarget() {
     		return label.getDestBCode();
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return test;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        test = r;
+    }
     public String toString() {
         return super.toString("jumptrue", test, label.dist(number));
     }
@@ -722,9 +1313,25 @@ class IJumpfalse extends BCode {
         this.label = label;
     }
     @Override
+    void setBranchLabel(Label label) {
+    		this.label = label;
+    }
+    @Override
     public BCode getBranchTarget() {
     		return label.getDestBCode();
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return test;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        test = r;
+    }
     public String toString() {
         return super.toString("jumpfalse", test, label.dist(number));
     }
@@ -740,6 +1347,18 @@ class IThrow extends BCode {
     public boolean isFallThroughInstruction()  {
     		return false;
     }
+    @Override
+    public int getNumberOfUses() {
+        return 1;
+    }
+    @Override
+    public Register getUse(int i) {
+        return reg;
+    }
+    @Override
+    public void setUse(int i, Register r) {
+        reg = r;
+    }
     public String toString() {
         return super.toString("throw", reg);
     }
@@ -810,6 +1429,24 @@ class IFuncLength extends BCode {
         return super.toString("funcLength", n);
     }
 }
+class IGlobalLength extends BCode {
+    int n;
+    IGlobalLength(int n) {
+    		this.n = n;
+    	}
+    public String toString() {
+        return super.toString("globalLength", n);
+    }
+}
+class IGlobalName extends BCode {
+    String name;
+    IGlobalName(String name) {
+    		this.name = name;
+    	}
+    public String toString() {
+        return super.toString("globalName", "\"" + name + "\"");
+    }
+}
 class ICallentry extends BCode {
     int n;
     ICallentry(int n) {
@@ -863,6 +1500,17 @@ class IError extends BCode {
     }
 }
 
+// Instruction restored from BCodeCache.  Only its textual form is known.
+class ICached extends BCode {
+    String text;
+    ICached(String text) {
+    		this.text = text;
+    }
+    public String toString() {
+        return text;
+    }
+}
+
 class MSetfl extends BCode {
 	MSetfl() {}
 	@Override
@@ -885,14 +1533,36 @@ class MCall extends BCode {
 		this.isTail = isTail;
 	}
 	@Override
-	public HashSet<Register> getSrcRegisters() {
-		HashSet<Register> srcs = new HashSet<Register>();
-		if (receiver != null)
-			srcs.add(receiver);
-		srcs.add(function);
-		for (Register r: args)
-			srcs.add(r);
-		return srcs;
+	public boolean isFallThroughInstruction() {
+		return !isTail;
+	}
+	// receiver if any, function, and arguments
+	@Override
+	public int getNumberOfUses() {
+		return (receiver == null ? 1 : 2) + args.length;
+	}
+	@Override
+	public Register getUse(int i) {
+		if (receiver != null) {
+			if (i == 0)
+				return receiver;
+			i--;
+		}
+		return i == 0 ? function : args[i - 1];
+	}
+	@Override
+	public void setUse(int i, Register r) {
+		if (receiver != null) {
+			if (i == 0) {
+				receiver = r;
+				return;
+			}
+			i--;
+		}
+		if (i == 0)
+			function = r;
+		else
+			args[i - 1] = r;
 	}
 	@Override
 	public String toString() {
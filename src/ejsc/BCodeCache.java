@@ -0,0 +1,319 @@
+package ejsc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Content-addressed on-disk cache of the optimised code of functions.
+ *
+ * The key of a function is the SHA-256 hash of its low-level code just
+ * after code generation, i.e., before optimisation and macro expansion,
+ * together with the optimisation flags.  The code of a function depends
+ * not only on its own iAST but also on the enclosing scopes (locations of
+ * free variables) and on the indexes of nested functions, all of which
+ * appear in the unoptimised code.  The value is the code after
+ * optimisation and macro expansion in its textual form.
+ *
+ * The cache is a directory with two files.
+ *   index  open addressing hash table, memory-mapped.  A lookup compares
+ *          the key with the slots in the mapped file directly.
+ *            header: MAGIC, VERSION, capacity, count   (int x 4)
+ *            slot:   key (32 bytes), offset (long), length (int)
+ *          A slot is empty if its length is 0.
+ *   data   values appended one after another.
+ * New entries are kept in memory and appended by flush() under a file
+ * lock, so that compilers sharing the directory do not corrupt it.
+ */
+class BCodeCache {
+    static final int MAGIC = 0x454a5343;  // "EJSC"
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 16;
+    static final int KEY_SIZE = 32;
+    static final int SLOT_SIZE = KEY_SIZE + 8 + 4;
+    static final int INITIAL_CAPACITY = 1024;
+
+    File indexFile;
+    File dataFile;
+    MappedByteBuffer index;  // null if there is no valid index
+    MappedByteBuffer data;
+    Map<ByteBuffer, byte[]> newEntries = new LinkedHashMap<ByteBuffer, byte[]>();
+
+    BCodeCache(String dirname) throws IOException {
+        File dir = new File(dirname);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create directory: " + dirname);
+        indexFile = new File(dir, "index");
+        dataFile = new File(dir, "data");
+        if (indexFile.exists() && dataFile.exists()) {
+            index = mapReadOnly(indexFile);
+            data = mapReadOnly(dataFile);
+            if (!isValidIndex(index))
+                index = null;
+        }
+    }
+
+    static MappedByteBuffer mapReadOnly(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            ch.close();
+        }
+    }
+
+    static boolean isValidIndex(ByteBuffer index) {
+        if (index.capacity() < HEADER_SIZE)
+            return false;
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION)
+            return false;
+        int capacity = index.getInt(8);
+        return capacity > 0 && index.capacity() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /*
+     * Key computation
+     */
+    static byte[] computeKey(BCBuilder.FunctionBCBuilder fb, boolean optimised, Main.Info info) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION);
+        if (optimised) {
+            sb.append(info.optConstantPropagation ? " const" : "");
+            sb.append(info.optLoopInvariantCodeMotion ? " licm" : "");
+            sb.append(info.optCommonConstantElimination ? " cce" : "");
+            sb.append(info.optCopyPropagation ? " copy" : "");
+            sb.append(info.optRedunantInstructionElimination ? " rie" : "");
+            sb.append(info.optRegisterAssignment ? " reg" : "");
+            sb.append(info.optCompactCode ? " compact" : "");
+        } else
+            sb.append(" none");
+        sb.append('\n');
+        fb.assignAddress();
+        sb.append(fb.callEntry.dist(0)).append(' ')
+          .append(fb.sendEntry.dist(0)).append(' ')
+          .append(fb.numberOfLocals).append(' ')
+          .append(fb.numberOfGPRegisters).append(' ')
+          .append(fb.numberOfArgumentRegisters).append('\n');
+        md.update(toBytes(sb.toString()));
+        for (BCode bc : fb.bcodes) {
+            byte[] b = toBytes(bc.toString());
+            md.update(toBytes(b.length + ":"));
+            md.update(b);
+        }
+        return md.digest();
+    }
+
+    /*
+     * Value encoding.  The addresses of fb must have been assigned.
+     */
+    static byte[] encode(BCBuilder.FunctionBCBuilder fb) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(fb.callEntry.dist(0));
+            out.writeInt(fb.sendEntry.dist(0));
+            out.writeInt(fb.numberOfLocals);
+            out.writeInt(fb.numberOfGPRegisters);
+            out.writeInt(fb.bcodes.size());
+            for (BCode bc : fb.bcodes) {
+                byte[] b = toBytes(bc.toString());
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    static void restore(BCBuilder.FunctionBCBuilder fb, ByteBuffer value) {
+        int callEntry = value.getInt();
+        int sendEntry = value.getInt();
+        fb.numberOfLocals = value.getInt();
+        fb.numberOfGPRegisters = value.getInt();
+        int n = value.getInt();
+        List<BCode> bcodes = new ArrayList<BCode>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] b = new byte[value.getInt()];
+            value.get(b);
+            bcodes.add(new ICached(fromBytes(b)));
+        }
+        fb.bcodes = bcodes;
+        fb.setEntry(new Label(bcodes.get(callEntry)), new Label(bcodes.get(sendEntry)));
+    }
+
+    static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    static String fromBytes(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /*
+     * Lookup and store
+     */
+
+    // Returns the slot position of the key, or the empty slot where the
+    // key should be inserted.
+    static int findSlot(ByteBuffer index, byte[] key) {
+        int capacity = index.getInt(8);
+        int h = ((key[0] & 0xff) | (key[1] & 0xff) << 8 | (key[2] & 0xff) << 16 | (key[3] & 0x7f) << 24) % capacity;
+        for (int i = 0; i < capacity; i++) {
+            int pos = HEADER_SIZE + ((h + i) % capacity) * SLOT_SIZE;
+            if (index.getInt(pos + KEY_SIZE + 8) == 0)
+                return pos;
+            int k = 0;
+            while (k < KEY_SIZE && index.get(pos + k) == key[k])
+                k++;
+            if (k == KEY_SIZE)
+                return pos;
+        }
+        return -1;
+    }
+
+    // Returns the value of the key or null.  The value is a view of the
+    // mapped data file.
+    ByteBuffer lookup(byte[] key) {
+        if (index != null) {
+            int pos = findSlot(index, key);
+            if (pos >= 0) {
+                long offset = index.getLong(pos + KEY_SIZE);
+                int length = index.getInt(pos + KEY_SIZE + 8);
+                // entries added by other compilers after we mapped data
+                // are not visible
+                if (length > 0 && offset + length <= data.capacity()) {
+                    ByteBuffer value = data.duplicate();
+                    value.position((int) offset);
+                    value.limit((int) offset + length);
+                    return value.slice();
+                }
+            }
+        }
+        return null;
+    }
+
+    void store(byte[] key, byte[] value) {
+        newEntries.put(ByteBuffer.wrap(key), value);
+    }
+
+    void flush() throws IOException {
+        if (newEntries.isEmpty())
+            return;
+        FileChannel dataCh = FileChannel.open(dataFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = dataCh.lock();
+            try {
+                MappedByteBuffer idx = openIndexForWrite(newEntries.size());
+                long offset = dataCh.size();
+                for (Map.Entry<ByteBuffer, byte[]> e : newEntries.entrySet()) {
+                    byte[] key = e.getKey().array();
+                    byte[] value = e.getValue();
+                    int pos = findSlot(idx, key);
+                    if (idx.getInt(pos + KEY_SIZE + 8) != 0)
+                        continue;  // stored by another compiler
+                    dataCh.write(ByteBuffer.wrap(value), offset);
+                    // The key is written last so that a concurrent reader
+                    // never matches a slot without offset and length.
+                    idx.putLong(pos + KEY_SIZE, offset);
+                    idx.putInt(pos + KEY_SIZE + 8, value.length);
+                    for (int k = 0; k < KEY_SIZE; k++)
+                        idx.put(pos + k, key[k]);
+                    idx.putInt(12, idx.getInt(12) + 1);
+                    offset += value.length;
+                }
+                idx.force();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            dataCh.close();
+        }
+        newEntries.clear();
+    }
+
+    // Maps the index file for writing so that it has room for n more
+    // entries.  Growing is done by writing a new file and renaming it,
+    // so that readers that have mapped the old file are not affected.
+    MappedByteBuffer openIndexForWrite(int n) throws IOException {
+        ByteBuffer old = null;
+        if (indexFile.exists()) {
+            old = mapReadOnly(indexFile);
+            if (!isValidIndex(old)) {
+                // The index is broken.  Values in the data file become
+                // garbage.
+                old = null;
+            }
+        }
+        int count = old == null ? 0 : old.getInt(12);
+        int capacity = old == null ? 0 : old.getInt(8);
+        if (old == null || (count + n) * 2 > capacity) {
+            int newCapacity = Math.max(INITIAL_CAPACITY, capacity);
+            while ((count + n) * 2 > newCapacity)
+                newCapacity *= 2;
+            File tmp = new File(indexFile.getPath() + ".tmp");
+            FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer idx = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+                idx.putInt(0, MAGIC);
+                idx.putInt(4, VERSION);
+                idx.putInt(8, newCapacity);
+                idx.putInt(12, count);
+                byte[] key = new byte[KEY_SIZE];
+                for (int i = 0; i < capacity; i++) {
+                    int pos = HEADER_SIZE + i * SLOT_SIZE;
+                    if (old.getInt(pos + KEY_SIZE + 8) == 0)
+                        continue;
+                    for (int k = 0; k < KEY_SIZE; k++)
+                        key[k] = old.get(pos + k);
+                    int newPos = findSlot(idx, key);
+                    for (int k = 0; k < SLOT_SIZE; k++)
+                        idx.put(newPos + k, old.get(pos + k));
+                }
+                idx.force();
+            } finally {
+                ch.close();
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        } finally {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+   BitVectorDataflow.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc;
+import java.util.BitSet;
+
+/*
+ * Iterative bit-vector dataflow analysis over the blocks of a
+ * ControlFlowGraph.
+ *
+ * Facts are numbered from 0.  Each instruction has gen and kill sets, and
+ * its transfer function is out = gen + (in - kill), where in and out are
+ * taken in the direction of the analysis.  Transfer functions of the
+ * instructions of a block are composed into one for the block, and the
+ * block equations are solved with a worklist seeded in reverse postorder
+ * for forward analyses and postorder for backward ones.
+ *
+ * With union as the meet, facts start empty.  With intersection, they
+ * start full except at boundary blocks, i.e., blocks without predecessors
+ * (forward) or successors (backward), where nothing holds.  Handler entries
+ * are boundary blocks because ControlFlowGraph has no edges to them.
+ */
+public class BitVectorDataflow {
+    enum Direction { FORWARD, BACKWARD }
+    enum Meet { UNION, INTERSECTION }
+
+    private final ControlFlowGraph cfg;
+    private final Direction direction;
+    private final BitSet[] gen;
+    private final BitSet[] kill;
+    private final BitSet[] blockIn;
+    // facts on entry to each instruction of the block last looked up
+    private int cachedBlock = -1;
+    private BitSet[] cachedIn;
+
+    BitVectorDataflow(ControlFlowGraph cfg, Direction direction, Meet meet, int numberOfFacts, BitSet[] gen, BitSet[] kill) {
+        this.cfg = cfg;
+        this.direction = direction;
+        this.gen = gen;
+        this.kill = kill;
+
+        int nBlocks = cfg.getNumberOfBlocks();
+        BitSet[] blockGen = new BitSet[nBlocks];
+        BitSet[] blockKill = new BitSet[nBlocks];
+        for (int b = 0; b < nBlocks; b++) {
+            BitSet g = new BitSet(numberOfFacts);
+            BitSet k = new BitSet(numberOfFacts);
+            ControlFlowGraph.BasicBlock block = cfg.getBlock(b);
+            for (int i = first(block); i != end(block); i = next(i)) {
+                g.andNot(kill[i]);
+                g.or(gen[i]);
+                k.or(kill[i]);
+            }
+            blockGen[b] = g;
+            blockKill[b] = k;
+        }
+
+        BitSet[] blockIn = new BitSet[nBlocks];
+        BitSet[] blockOut = new BitSet[nBlocks];
+        for (int b = 0; b < nBlocks; b++) {
+            blockIn[b] = new BitSet(numberOfFacts);
+            blockOut[b] = new BitSet(numberOfFacts);
+            if (meet == Meet.INTERSECTION)
+                blockOut[b].set(0, numberOfFacts);
+        }
+
+        // worklist as a ring buffer; a block is in it at most once
+        int[] order = cfg.getOrder();
+        int[] queue = new int[nBlocks + 1];
+        boolean[] queued = new boolean[nBlocks];
+        int head = 0, tail = 0;
+        for (int k = 0; k < nBlocks; k++) {
+            int b = direction == Direction.FORWARD ? order[k] : order[nBlocks - 1 - k];
+            queue[tail++] = b;
+            queued[b] = true;
+        }
+        BitSet newOut = new BitSet(numberOfFacts);
+        while (head != tail) {
+            int b = queue[head];
+            head = head == nBlocks ? 0 : head + 1;
+            queued[b] = false;
+
+            BitSet bIn = blockIn[b];
+            int[] sources = inEdges(cfg.getBlock(b));
+            bIn.clear();
+            for (int k = 0; k < sources.length; k++) {
+                if (k == 0)
+                    bIn.or(blockOut[sources[k]]);
+                else if (meet == Meet.UNION)
+                    bIn.or(blockOut[sources[k]]);
+                else
+                    bIn.and(blockOut[sources[k]]);
+            }
+
+            newOut.clear();
+            newOut.or(bIn);
+            newOut.andNot(blockKill[b]);
+            newOut.or(blockGen[b]);
+            if (newOut.equals(blockOut[b]))
+                continue;
+            blockOut[b].clear();
+            blockOut[b].or(newOut);
+            for (int s: outEdges(cfg.getBlock(b)))
+                if (!queued[s]) {
+                    queue[tail] = s;
+                    tail = tail == nBlocks ? 0 : tail + 1;
+                    queued[s] = true;
+                }
+        }
+
+        this.blockIn = blockIn;
+    }
+
+    private int first(ControlFlowGraph.BasicBlock b) {
+        return direction == Direction.FORWARD ? b.getFirst() : b.getLast();
+    }
+
+    private int end(ControlFlowGraph.BasicBlock b) {
+        return direction == Direction.FORWARD ? b.getEnd() : b.getFirst() - 1;
+    }
+
+    private int next(int i) {
+        return direction == Direction.FORWARD ? i + 1 : i - 1;
+    }
+
+    private int[] inEdges(ControlFlowGraph.BasicBlock b) {
+        return direction == Direction.FORWARD ? b.getPreds() : b.getSuccs();
+    }
+
+    private int[] outEdges(ControlFlowGraph.BasicBlock b) {
+        return direction == Direction.FORWARD ? b.getSuccs() : b.getPreds();
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    // Facts on entry to the i-th instruction in the direction of the
+    // analysis, i.e., just after it for backward analyses.  Computed from
+    // those of its block, which are kept for the next lookup.  Not to be
+    // modified.
+    public BitSet getIn(int i) {
+        ControlFlowGraph.BasicBlock block = cfg.getBlock(cfg.getBlockOf(i));
+        if (cachedBlock != block.getId()) {
+            cachedIn = new BitSet[block.getEnd() - block.getStart()];
+            BitSet x = (BitSet) blockIn[block.getId()].clone();
+            for (int j = first(block); j != end(block); j = next(j)) {
+                cachedIn[j - block.getStart()] = (BitSet) x.clone();
+                x.andNot(kill[j]);
+                x.or(gen[j]);
+            }
+            cachedBlock = block.getId();
+        }
+        return cachedIn[i - block.getStart()];
+    }
+
+    // Facts on exit from the i-th instruction in the direction of the
+    // analysis.
+    public BitSet getOut(int i) {
+        BitSet out = (BitSet) getIn(i).clone();
+        out.andNot(kill[i]);
+        out.or(gen[i]);
+        return out;
+    }
+}
@@ -23,6 +23,8 @@
 package ejsc;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -46,6 +48,8 @@ public class CodeGenerator extends IASTBaseVisitor {
 			List<String> argumentsVars;
             List<String> staticLocals;
             HashMap<String, Register> regHash;
+            HashMap<String, Integer> paramIndex;
+            HashMap<String, Integer> staticLocalIndex;
             LinkedList<String> dynamicLocals;
             boolean hasFrame;
 
@@ -66,18 +70,25 @@ public class CodeGenerator extends IASTBaseVisitor {
 				numOfRegisters = 1 + params.size(); // this + params
             	paramRegisters = new Register[numOfRegisters];
 				regHash = new HashMap<String, Register>();
+				paramIndex = new HashMap<String, Integer>();
+				HashSet<String> regVarSet = new HashSet<String>(regVars);
 				paramRegisters[0] = new Register(1); // this
 				for (int i = 0; i < params.size(); i++) {
 					Register r = new Register(i + 2);
 					String var = params.get(i);
-					if (regVars.contains(var))
+					if (regVarSet.contains(var))
 						regHash.put(var, r);
+					if (!paramIndex.containsKey(var))
+						paramIndex.put(var, i);
 					paramRegisters[i + 1] = r;
 				}
 				for (String reg : regVars) {
-					if (!params.contains(reg))
+					if (!paramIndex.containsKey(reg))
 						regHash.put(reg, freshRegister());
 				}
+				staticLocalIndex = new HashMap<String, Integer>();
+				for (int i = frameVars.size() - 1; i >= 0; i--)
+					staticLocalIndex.put(frameVars.get(i), i);
 				this.params = params;
 				this.argumentsVars = argumentsVars; // created by FunctionDeclaration
 				this.staticLocals = frameVars; // created by VariableDeclaration and FunctionDeclaration
@@ -133,8 +144,8 @@ public class CodeGenerator extends IASTBaseVisitor {
             }
 
 			Register getParamRegister(String name) {
-				int index = params.indexOf(name);
-				if (index == -1)
+				Integer index = paramIndex.get(name);
+				if (index == null)
 					throw new Error(name + " is not a parameter");
 				return paramRegisters[index + 1];
 			}
@@ -210,30 +221,17 @@ public class CodeGenerator extends IASTBaseVisitor {
             }
         }
 
-        Location getVar(String id) {
-            int depth = 0;
-            boolean isLocal = true;
-            
-            /* register */
-            {
-				Register r = getCurrentFrame().regHash.get(id);
-				if (r != null)
-					return new Location(r);
-            }
-
-            /* frame and arguemnts */
-            for (Frame ve : frameList) {
-                int n;
-
-                if ((n = ve.staticLocals.indexOf(id)) >= 0)
-                    return new Location(Location.IN_FRAME, isLocal, depth, n);
-				if ((n = ve.argumentsVars.indexOf(id)) >= 0)
-                    return new Location(Location.IN_ARGUMENTS, isLocal, depth, n);
-                if (ve.hasFrame)
-                    depth++;
-                isLocal = false;
+        // The variable has been resolved by ScopeAnalyzer.  Returns null
+        // if it is global.
+        Location getVar(String id, ScopeAnalyzer.Binding b) {
+            switch (b.locationType) {
+            case ScopeAnalyzer.Binding.GLOBAL:
+                return null;
+            case Location.IN_REGISTER:
+                return new Location(getCurrentFrame().regHash.get(id));
+            default:
+                return new Location(b.locationType, b.isLocal, b.depth, b.idx);
             }
-            return null;
         }
 
 		Location getVarInitialLocation(String id) {
@@ -296,6 +294,9 @@ public class CodeGenerator extends IASTBaseVisitor {
     static final int THIS_OBJECT_REGISTER = 0;
     boolean needArguments;
     boolean needFrame;
+    // slot numbers of global variables (see GlobalSlotAnalyzer); null if
+    // all global variables are accessed by name
+    LinkedHashMap<String, Integer> globalSlots = null;
 
     void printByteCode(List<BCode> bcodes) {
         for (BCode bcode : bcodes) {
@@ -306,6 +307,9 @@ public class CodeGenerator extends IASTBaseVisitor {
     public BCBuilder compile(IASTProgram node) {
         this.bcBuilder = new BCBuilder();
         this.env = new Environment();
+        new ScopeAnalyzer().analyze(node);
+        if (globalSlots != null)
+            bcBuilder.globalNames = new ArrayList<String>(globalSlots.keySet());
         try {
             bcBuilder.openFunctionBCBuilder();
 			env.openFrame(new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>(), true);
@@ -315,8 +319,7 @@ public class CodeGenerator extends IASTBaseVisitor {
             env.closeFrame();
             bcBuilder.closeFuncBCBuilder();
         } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+            throw new Error(e);
         }
         return bcBuilder;
     }
@@ -374,6 +377,12 @@ public class CodeGenerator extends IASTBaseVisitor {
         return null;
     }
 
+    @Override
+    public Object visitUndefinedLiteral(IASTUndefinedLiteral node) {
+        bcBuilder.push(new IUndefinedconst(reg));
+        return null;
+    }
+
     @Override
     public Object visitRegExpLiteral(IASTRegExpLiteral node) {
         bcBuilder.push(new IRegexp(reg, 0, node.pattern));
@@ -394,6 +403,8 @@ public class CodeGenerator extends IASTBaseVisitor {
             bcBuilder.push(new IUndefinedconst(reg));
         } else {
           compileNode(node.value, reg);
+          if (node.value instanceof IASTCallExpression && ((IASTCallExpression) node.value).isTail)
+              return null;
         }
         bcBuilder.push(new ISeta(reg));
         bcBuilder.push(new IRet());
@@ -575,7 +586,7 @@ public class CodeGenerator extends IASTBaseVisitor {
         bcBuilder.push(new IMakeiterator(objReg, iteReg));
         bcBuilder.push(l1);
         bcBuilder.push(new INextpropname(objReg, iteReg, propReg));
-        compileSetVariable(node.var, propReg);
+        compileSetVariable(node.var, node.varBinding, propReg);
         bcBuilder.push(new IIsundef(testReg, propReg));
         bcBuilder.push(new IJumptrue(testReg, l2));
         bcBuilder.push(continueLabel);
@@ -622,32 +633,9 @@ public class CodeGenerator extends IASTBaseVisitor {
         bcBuilder.openFunctionBCBuilder();
         int functionIdx = bcBuilder.getFBIdx();
 
-        LinkedList<String> locals = new LinkedList<String>();
-        LinkedList<String> params = new LinkedList<String>();
-        LinkedList<String> regLocals = new LinkedList<String>();
-
-        if (needArguments) {
-            params.addAll(node.params);
-            locals.addFirst("arguments");
-        } else {
-			// PROSYM: no variables are in innerUsedLocals if needArguments == false
-			// G1: all variables are in innerUsedLocals
-            for (String var : node.params) {
-                if (node.innerUsedLocals == null || node.innerUsedLocals.contains(var))
-                    locals.add(var);
-                else
-                    regLocals.add(var);
-            }
-        }
-		// PROSYM and G1: all variables are in innerUsedLocals
-        for (String var : node.locals) {
-                if (node.innerUsedLocals == null || node.innerUsedLocals.contains(var))
-                    locals.add(var);
-                else
-                    regLocals.add(var);
-        }
-
-		env.openFrame(node.params, params, locals, regLocals, needFrame);
+        // locations of variables are decided by ScopeAnalyzer
+        List<String> locals = node.frameLocals;
+		env.openFrame(node.params, node.argumentsVars, locals, node.regLocals, needFrame);
 
         Register globalObjReg = env.getCurrentFrame().getParamRegister(THIS_OBJECT_REGISTER);
         env.setRegOfGlobalObj(globalObjReg);
@@ -666,15 +654,29 @@ public class CodeGenerator extends IASTBaseVisitor {
 			bcBuilder.push(new INewframe(locals.size(), needArguments ? 1 : 0));
         bcBuilder.pushMsetfl();
 
+        // parameters to which every caller passes the same literal; only
+        // those living in registers (-opt-g3), since the others are read
+        // from the frame or the arguments
+        if (node.constantParams != null) {
+            Environment.Frame frame = env.getCurrentFrame();
+            for (String name : node.params) {
+                IASTLiteral value = node.constantParams.get(name);
+                if (value != null && frame.regHash.containsKey(name))
+                    compileNode(value, frame.regHash.get(name));
+            }
+        }
+
 		/*
 		 * move argument on stack to appropriate location, i.e, frame
 		 */
         if (!needArguments && needFrame) {
+            Environment.Frame frame = env.getCurrentFrame();
 			for (String name : node.params) {
-                Environment.Location varLoc = env.getVar(name);
-				Environment.Location varInitLoc = env.getVarInitialLocation(name);
-                if (varLoc.inFrame())
-					bcBuilder.push(new ISetlocal(0, varLoc.idx, varInitLoc.reg));
+				Integer idx = frame.staticLocalIndex.get(name);
+                if (idx != null && !frame.regHash.containsKey(name)) {
+					Environment.Location varInitLoc = env.getVarInitialLocation(name);
+					bcBuilder.push(new ISetlocal(0, idx, varInitLoc.reg));
+				}
             }
         }
 
@@ -987,8 +989,8 @@ public class CodeGenerator extends IASTBaseVisitor {
     }
     void compileAssignment(IASTExpression dst, Register srcReg) {
         if (dst instanceof IASTIdentifier) {
-            String id = ((IASTIdentifier) dst).id;
-            compileSetVariable(id, srcReg);
+            IASTIdentifier id = (IASTIdentifier) dst;
+            compileSetVariable(id.id, id.binding, srcReg);
         } else if (dst instanceof IASTMemberExpression) {
             IASTMemberExpression memExp = (IASTMemberExpression) dst;
             Register objReg = env.getCurrentFrame().freshRegister();
@@ -999,9 +1001,11 @@ public class CodeGenerator extends IASTBaseVisitor {
         }
     }
 
-    void compileSetVariable(String varName, Register srcReg) {
-        Environment.Location varLoc = env.getVar(varName);
-        if (varLoc == null) { // global
+    void compileSetVariable(String varName, ScopeAnalyzer.Binding binding, Register srcReg) {
+        Environment.Location varLoc = env.getVar(varName, binding);
+        if (varLoc == null && globalSlots != null && globalSlots.containsKey(varName))
+            bcBuilder.push(new ISetglobalslot(globalSlots.get(varName), srcReg));
+        else if (varLoc == null) { // global
             Register r1 = env.getCurrentFrame().freshRegister();
             bcBuilder.push(new IString(r1, varName));
             bcBuilder.push(new ISetglobal(r1, srcReg));
@@ -1020,9 +1024,11 @@ public class CodeGenerator extends IASTBaseVisitor {
         }
     }
 
-    void compileGetVariable(String varName, Register dstReg) {
-        Environment.Location varLoc = env.getVar(varName);
-        if (varLoc == null) {
+    void compileGetVariable(String varName, ScopeAnalyzer.Binding binding, Register dstReg) {
+        Environment.Location varLoc = env.getVar(varName, binding);
+        if (varLoc == null && globalSlots != null && globalSlots.containsKey(varName))
+            bcBuilder.push(new IGetglobalslot(dstReg, globalSlots.get(varName)));
+        else if (varLoc == null) {
             Register r1 = env.getCurrentFrame().freshRegister();
             bcBuilder.push(new IString(r1, varName));
             bcBuilder.push(new IGetglobal(dstReg, r1));
@@ -1083,7 +1089,7 @@ public class CodeGenerator extends IASTBaseVisitor {
             	IASTNode argument = node.arguments.get(i);
                 compileNode(argument, tmpRegs[i]);
             }
-    		bcBuilder.pushMCall(objReg, propValReg, tmpRegs, false, false);
+    		bcBuilder.pushMCall(objReg, propValReg, tmpRegs, false, node.isTail);
     	} else {
             Register calleeReg = env.getCurrentFrame().freshRegister();
             compileNode(node.callee, calleeReg);
@@ -1091,8 +1097,11 @@ public class CodeGenerator extends IASTBaseVisitor {
             	IASTNode argument = node.arguments.get(i);
                 compileNode(argument, tmpRegs[i]);
             }            
-            bcBuilder.pushMCall(null, calleeReg, tmpRegs, false, false);
+            bcBuilder.pushMCall(null, calleeReg, tmpRegs, false, node.isTail);
     	}
+        // A tail call does not return here.
+        if (node.isTail)
+            return null;
         bcBuilder.pushMsetfl();
         bcBuilder.push(new IGeta(reg));
         return null;
@@ -1140,7 +1149,7 @@ public class CodeGenerator extends IASTBaseVisitor {
 
     @Override
     public Object visitIdentifier(IASTIdentifier node) {
-        compileGetVariable(node.id, reg);
+        compileGetVariable(node.id, node.binding, reg);
         return null;
     }
 }
@@ -0,0 +1,597 @@
+/*
+   CompactCode.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/*
+ * Code of a function in parallel int arrays.
+ *
+ * Instruction i is opcode[i] with destination dst[i], the first two source
+ * registers src1[i] and src2[i] (in the order of BCode.getUse) and an
+ * immediate imm[i].  Other operands go to an int pool from ext[i]: first
+ * the other immediates of the instruction, then its other source
+ * registers.  Doubles and strings are kept in pools and referred to by
+ * index.
+ *
+ * Registers are plain ints numbered from 0 in the order they appear; -1
+ * means none.  As the optimiser tells registers by identity, two registers
+ * with the same register number may have different ids.  toBCodes creates
+ * a new Register for each id.
+ *
+ * Labels are kept in a side table.  A jump refers to its label by index,
+ * and each label records the instruction it points to and whether it is
+ * attached to it.  toBCodes makes the same Label objects point to the new
+ * instructions, including those held outside of the code such as entry
+ * labels.  Until then, the labels point to no instruction.
+ *
+ * Code of the macro instructions MSetfl, MCall and MParameter can be
+ * converted, but not the header instructions output by BCBuilder.build.
+ */
+public class CompactCode {
+    enum Opcode {
+        FIXNUM(IFixnum.class), NUMBER(INumber.class), STRING(IString.class),
+        BOOLEANCONST(IBooleanconst.class), NULLCONST(INullconst.class),
+        UNDEFINEDCONST(IUndefinedconst.class), REGEXP(IRegexp.class),
+        ADD(IAdd.class), SUB(ISub.class), MUL(IMul.class), DIV(IDiv.class), MOD(IMod.class),
+        BITOR(IBitor.class), BITAND(IBitand.class), LEFTSHIFT(ILeftshift.class),
+        RIGHTSHIFT(IRightshift.class), UNSIGNEDRIGHTSHIFT(IUnsignedrightshift.class),
+        EQUAL(IEqual.class), EQ(IEq.class), LESSTHAN(ILessthan.class),
+        LESSTHANEQUAL(ILessthanequal.class), NOT(INot.class),
+        GETGLOBALOBJ(IGetglobalobj.class), NEWARGS(INewargs.class), NEWFRAME(INewframe.class),
+        GETGLOBAL(IGetglobal.class), SETGLOBAL(ISetglobal.class),
+        GETGLOBALSLOT(IGetglobalslot.class), SETGLOBALSLOT(ISetglobalslot.class),
+        GETLOCAL(IGetlocal.class), SETLOCAL(ISetlocal.class),
+        GETARG(IGetarg.class), SETARG(ISetarg.class),
+        GETPROP(IGetprop.class), SETPROP(ISetprop.class), SETARRAY(ISetarray.class),
+        MAKECLOSURE(IMakeclosure.class), GETA(IGeta.class), SETA(ISeta.class), RET(IRet.class),
+        MOVE(IMove.class), ISUNDEF(IIsundef.class), ISOBJECT(IIsobject.class),
+        INSTANCEOF(IInstanceof.class),
+        CALL(ICall.class), SEND(ISend.class), TAILCALL(ITailcall.class), TAILSEND(ITailsend.class),
+        NEW(INew.class), NEWSEND(INewsend.class),
+        MAKEITERATOR(IMakeiterator.class), NEXTPROPNAME(INextpropname.class),
+        JUMP(IJump.class), JUMPTRUE(IJumptrue.class), JUMPFALSE(IJumpfalse.class),
+        THROW(IThrow.class), PUSHHANDLER(IPushhandler.class), POPHANDLER(IPophandler.class),
+        LOCALCALL(ILocalcall.class), LOCALRET(ILocalret.class), POPLOCAL(IPoplocal.class),
+        SETFL(ISetfl.class), ERROR(IError.class),
+        MSETFL(MSetfl.class), MCALL(MCall.class), MPARAMETER(MParameter.class);
+
+        final Class<? extends BCode> bcodeClass;
+
+        Opcode(Class<? extends BCode> bcodeClass) {
+            this.bcodeClass = bcodeClass;
+        }
+    }
+
+    static final Opcode[] OPCODES = Opcode.values();
+    static final HashMap<Class<? extends BCode>, Opcode> OPCODE_OF_CLASS = new HashMap<Class<? extends BCode>, Opcode>();
+    static {
+        for (Opcode op: OPCODES)
+            OPCODE_OF_CLASS.put(op.bcodeClass, op);
+    }
+
+    // flags of MCall in the pool
+    static final int MCALL_RECEIVER = 1;
+    static final int MCALL_NEW = 2;
+    static final int MCALL_TAIL = 4;
+
+    private int size;
+    private int[] opcode;
+    private int[] dst;
+    private int[] src1;
+    private int[] src2;
+    private int[] imm;
+    private int[] ext;
+
+    private IntBuffer pool = new IntBuffer();
+    private ArrayList<Double> numbers = new ArrayList<Double>();
+    private ArrayList<String> strings = new ArrayList<String>();
+    private IntBuffer registerNumber = new IntBuffer();
+
+    // label side table, attached labels first in the order of the code
+    private ArrayList<Label> labels = new ArrayList<Label>();
+    private IntBuffer labelTarget = new IntBuffer();
+    private int numberOfAttachedLabels;
+
+    static class IntBuffer {
+        int[] a = new int[16];
+        int size = 0;
+        int add(int x) {
+            if (size == a.length)
+                a = java.util.Arrays.copyOf(a, size * 2);
+            a[size] = x;
+            return size++;
+        }
+        int get(int i) {
+            return a[i];
+        }
+    }
+
+    // Encodes bcodes.  externalLabels are labels held outside of the
+    // code, which toBCodes makes point to the new instructions.
+    CompactCode(List<BCode> bcodes, Label... externalLabels) {
+        size = bcodes.size();
+        opcode = new int[size];
+        dst = new int[size];
+        src1 = new int[size];
+        src2 = new int[size];
+        imm = new int[size];
+        ext = new int[size];
+
+        IdentityHashMap<BCode, Integer> index = new IdentityHashMap<BCode, Integer>(size);
+        IdentityHashMap<Label, Integer> labelIndex = new IdentityHashMap<Label, Integer>();
+        int i = 0;
+        for (BCode bc: bcodes) {
+            index.put(bc, i);
+            for (Label l: bc.getLabels()) {
+                labelIndex.put(l, labels.size());
+                labels.add(l);
+                labelTarget.add(i);
+            }
+            i++;
+        }
+        numberOfAttachedLabels = labels.size();
+        for (Label l: externalLabels)
+            labelId(l, labelIndex, index);
+
+        IdentityHashMap<Register, Integer> registerIndex = new IdentityHashMap<Register, Integer>();
+        HashMap<Double, Integer> numberIndex = new HashMap<Double, Integer>();
+        HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+        i = 0;
+        for (BCode bc: bcodes) {
+            Opcode op = OPCODE_OF_CLASS.get(bc.getClass());
+            if (op == null)
+                throw new Error("cannot encode: " + bc);
+            opcode[i] = op.ordinal();
+            dst[i] = registerId(bc.getDestRegister(), registerIndex);
+            int nUses = bc.getNumberOfUses();
+            src1[i] = nUses > 0 ? registerId(bc.getUse(0), registerIndex) : -1;
+            src2[i] = nUses > 1 ? registerId(bc.getUse(1), registerIndex) : -1;
+            imm[i] = 0;
+            ext[i] = -1;
+
+            switch (op) {
+            case FIXNUM:
+                imm[i] = ((IFixnum) bc).n;
+                break;
+            case NUMBER:
+                imm[i] = poolIndex(((INumber) bc).n, numbers, numberIndex);
+                break;
+            case STRING:
+                imm[i] = poolIndex(((IString) bc).str, strings, stringIndex);
+                break;
+            case BOOLEANCONST:
+                imm[i] = ((IBooleanconst) bc).b ? 1 : 0;
+                break;
+            case REGEXP:
+                imm[i] = ((IRegexp) bc).idx;
+                ext[i] = pool.add(poolIndex(((IRegexp) bc).ptn, strings, stringIndex));
+                break;
+            case NEWFRAME:
+                imm[i] = ((INewframe) bc).len;
+                ext[i] = pool.add(((INewframe) bc).status);
+                break;
+            case GETGLOBALSLOT:
+                imm[i] = ((IGetglobalslot) bc).idx;
+                break;
+            case SETGLOBALSLOT:
+                imm[i] = ((ISetglobalslot) bc).idx;
+                break;
+            case GETLOCAL:
+                imm[i] = ((IGetlocal) bc).depth;
+                ext[i] = pool.add(((IGetlocal) bc).n);
+                break;
+            case SETLOCAL:
+                imm[i] = ((ISetlocal) bc).depth;
+                ext[i] = pool.add(((ISetlocal) bc).n);
+                break;
+            case GETARG:
+                imm[i] = ((IGetarg) bc).depth;
+                ext[i] = pool.add(((IGetarg) bc).n);
+                break;
+            case SETARG:
+                imm[i] = ((ISetarg) bc).depth;
+                ext[i] = pool.add(((ISetarg) bc).n);
+                break;
+            case SETARRAY:
+                imm[i] = ((ISetarray) bc).n;
+                break;
+            case MAKECLOSURE:
+                imm[i] = ((IMakeclosure) bc).idx;
+                break;
+            case CALL:
+                imm[i] = ((ICall) bc).numOfArgs;
+                break;
+            case SEND:
+                imm[i] = ((ISend) bc).numOfArgs;
+                break;
+            case TAILCALL:
+                imm[i] = ((ITailcall) bc).numOfArgs;
+                break;
+            case TAILSEND:
+                imm[i] = ((ITailsend) bc).numOfArgs;
+                break;
+            case NEWSEND:
+                imm[i] = ((INewsend) bc).numOfArgs;
+                break;
+            case JUMP:
+                imm[i] = labelId(((IJump) bc).label, labelIndex, index);
+                break;
+            case JUMPTRUE:
+                imm[i] = labelId(((IJumptrue) bc).label, labelIndex, index);
+                break;
+            case JUMPFALSE:
+                imm[i] = labelId(((IJumpfalse) bc).label, labelIndex, index);
+                break;
+            case PUSHHANDLER:
+                imm[i] = labelId(((IPushhandler) bc).label, labelIndex, index);
+                break;
+            case LOCALCALL:
+                imm[i] = labelId(((ILocalcall) bc).label, labelIndex, index);
+                break;
+            case SETFL:
+                imm[i] = ((ISetfl) bc).fl;
+                break;
+            case ERROR:
+                imm[i] = poolIndex(((IError) bc).str, strings, stringIndex);
+                break;
+            case MCALL: {
+                MCall mcall = (MCall) bc;
+                imm[i] = mcall.args.length;
+                ext[i] = pool.add((mcall.receiver != null ? MCALL_RECEIVER : 0) |
+                                  (mcall.isNew ? MCALL_NEW : 0) |
+                                  (mcall.isTail ? MCALL_TAIL : 0));
+                break;
+            }
+            default:
+                break;
+            }
+
+            if (nUses > 2) {
+                int start = pool.add(registerId(bc.getUse(2), registerIndex));
+                if (ext[i] < 0)
+                    ext[i] = start;
+                for (int u = 3; u < nUses; u++)
+                    pool.add(registerId(bc.getUse(u), registerIndex));
+            }
+            i++;
+        }
+
+        // let the instructions go; toBCodes makes the labels point to
+        // the new ones
+        for (Label l: labels)
+            l.replaceDestBCode(null);
+    }
+
+    private int registerId(Register r, IdentityHashMap<Register, Integer> registerIndex) {
+        if (r == null)
+            return -1;
+        Integer id = registerIndex.get(r);
+        if (id == null) {
+            id = registerNumber.add(r.getRegisterNumber());
+            registerIndex.put(r, id);
+        }
+        return id;
+    }
+
+    private <T> int poolIndex(T x, ArrayList<T> values, HashMap<T, Integer> valueIndex) {
+        Integer id = valueIndex.get(x);
+        if (id == null) {
+            id = values.size();
+            valueIndex.put(x, id);
+            values.add(x);
+        }
+        return id;
+    }
+
+    // index of a label in the side table; a label not attached to an
+    // instruction is added after the attached ones
+    private int labelId(Label l, IdentityHashMap<Label, Integer> labelIndex, IdentityHashMap<BCode, Integer> index) {
+        Integer id = labelIndex.get(l);
+        if (id == null) {
+            Integer target = index.get(l.getDestBCode());
+            if (target == null)
+                throw new Error("label out of the code: " + l.getDestBCode());
+            id = labels.size();
+            labelIndex.put(l, id);
+            labels.add(l);
+            labelTarget.add(target);
+        }
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Opcode getOpcode(int i) {
+        return OPCODES[opcode[i]];
+    }
+
+    public int getDst(int i) {
+        return dst[i];
+    }
+
+    public int getSrc1(int i) {
+        return src1[i];
+    }
+
+    public int getSrc2(int i) {
+        return src2[i];
+    }
+
+    public int getImm(int i) {
+        return imm[i];
+    }
+
+    public int getNumberOfRegisters() {
+        return registerNumber.size;
+    }
+
+    public int getRegisterNumber(int id) {
+        return registerNumber.get(id);
+    }
+
+    // instruction a jump, pushhandler or localcall at i points to
+    public int getTarget(int i) {
+        return labelTarget.get(imm[i]);
+    }
+
+    // Decodes the code.  Labels are attached to and made point to the
+    // new instructions.
+    List<BCode> toBCodes() {
+        Register[] registers = new Register[registerNumber.size];
+        for (int r = 0; r < registers.length; r++)
+            registers[r] = new Register(registerNumber.get(r));
+        BCode[] bcodes = new BCode[size];
+        for (int i = 0; i < size; i++)
+            bcodes[i] = decode(i, registers);
+        int l = 0;
+        ArrayList<Label> attached = new ArrayList<Label>();
+        for (int i = 0; i < size; i++) {
+            while (l < numberOfAttachedLabels && labelTarget.get(l) == i)
+                attached.add(labels.get(l++));
+            bcodes[i].addLabels(attached);
+            attached.clear();
+        }
+        for (; l < labels.size(); l++)
+            labels.get(l).replaceDestBCode(bcodes[labelTarget.get(l)]);
+
+        List<BCode> result = new ArrayList<BCode>(size);
+        for (BCode bc: bcodes)
+            result.add(bc);
+        return result;
+    }
+
+    // codegen leaves some operands null, which are encoded as -1
+    private static Register register(Register[] registers, int id) {
+        return id < 0 ? null : registers[id];
+    }
+
+    private BCode decode(int i, Register[] registers) {
+        Register d = register(registers, dst[i]);
+        int x = imm[i];
+        int e = ext[i];
+        BCode bc;
+        switch (OPCODES[opcode[i]]) {
+        case FIXNUM:             bc = new IFixnum(d, x); break;
+        case NUMBER:             bc = new INumber(d, numbers.get(x)); break;
+        case STRING:             bc = new IString(d, strings.get(x)); break;
+        case BOOLEANCONST:       bc = new IBooleanconst(d, x != 0); break;
+        case NULLCONST:          bc = new INullconst(d); break;
+        case UNDEFINEDCONST:     bc = new IUndefinedconst(d); break;
+        case REGEXP:             bc = new IRegexp(d, x, strings.get(pool.get(e++))); break;
+        case ADD:                bc = new IAdd(d, null, null); break;
+        case SUB:                bc = new ISub(d, null, null); break;
+        case MUL:                bc = new IMul(d, null, null); break;
+        case DIV:                bc = new IDiv(d, null, null); break;
+        case MOD:                bc = new IMod(d, null, null); break;
+        case BITOR:              bc = new IBitor(d, null, null); break;
+        case BITAND:             bc = new IBitand(d, null, null); break;
+        case LEFTSHIFT:          bc = new ILeftshift(d, null, null); break;
+        case RIGHTSHIFT:         bc = new IRightshift(d, null, null); break;
+        case UNSIGNEDRIGHTSHIFT: bc = new IUnsignedrightshift(d, null, null); break;
+        case EQUAL:              bc = new IEqual(d, null, null); break;
+        case EQ:                 bc = new IEq(d, null, null); break;
+        case LESSTHAN:           bc = new ILessthan(d, null, null); break;
+        case LESSTHANEQUAL:      bc = new ILessthanequal(d, null, null); break;
+        case NOT:                bc = new INot(d, null); break;
+        case GETGLOBALOBJ:       bc = new IGetglobalobj(d); break;
+        case NEWARGS:            bc = new INewargs(); break;
+        case NEWFRAME:           bc = new INewframe(x, pool.get(e++)); break;
+        case GETGLOBAL:          bc = new IGetglobal(d, null); break;
+        case SETGLOBAL:          bc = new ISetglobal(null, null); break;
+        case GETGLOBALSLOT:      bc = new IGetglobalslot(d, x); break;
+        case SETGLOBALSLOT:      bc = new ISetglobalslot(x, null); break;
+        case GETLOCAL:           bc = new IGetlocal(d, x, pool.get(e++)); break;
+        case SETLOCAL:           bc = new ISetlocal(x, pool.get(e++), null); break;
+        case GETARG:             bc = new IGetarg(d, x, pool.get(e++)); break;
+        case SETARG:             bc = new ISetarg(x, pool.get(e++), null); break;
+        case GETPROP:            bc = new IGetprop(d, null, null); break;
+        case SETPROP:            bc = new ISetprop(null, null, null); break;
+        case SETARRAY:           bc = new ISetarray(null, x, null); break;
+        case MAKECLOSURE:        bc = new IMakeclosure(d, x); break;
+        case GETA:               bc = new IGeta(d); break;
+        case SETA:               bc = new ISeta(null); break;
+        case RET:                bc = new IRet(); break;
+        case MOVE:               bc = new IMove(d, null); break;
+        case ISUNDEF:            bc = new IIsundef(d, null); break;
+        case ISOBJECT:           bc = new IIsobject(d, null); break;
+        case INSTANCEOF:         bc = new IInstanceof(d, null, null); break;
+        case CALL:               bc = new ICall(null, x); break;
+        case SEND:               bc = new ISend(null, x); break;
+        case TAILCALL:           bc = new ITailcall(null, x); break;
+        case TAILSEND:           bc = new ITailsend(null, x); break;
+        case NEW:                bc = new INew(d, null); break;
+        case NEWSEND:            bc = new INewsend(null, x); break;
+        case MAKEITERATOR:       bc = new IMakeiterator(null, d); break;
+        case NEXTPROPNAME:       bc = new INextpropname(null, null, d); break;
+        case JUMP:               bc = new IJump(labels.get(x)); break;
+        case JUMPTRUE:           bc = new IJumptrue(null, labels.get(x)); break;
+        case JUMPFALSE:          bc = new IJumpfalse(null, labels.get(x)); break;
+        case THROW:              bc = new IThrow(null); break;
+        case PUSHHANDLER:        bc = new IPushhandler(labels.get(x)); break;
+        case POPHANDLER:         bc = new IPophandler(); break;
+        case LOCALCALL:          bc = new ILocalcall(labels.get(x)); break;
+        case LOCALRET:           bc = new ILocalret(); break;
+        case POPLOCAL:           bc = new IPoplocal(); break;
+        case SETFL:              bc = new ISetfl(x); break;
+        case ERROR:              bc = new IError(d, strings.get(x)); break;
+        case MSETFL:             bc = new MSetfl(); break;
+        case MCALL: {
+            int flags = pool.get(e++);
+            // the receiver is set below; it only has to be non-null here
+            Register receiver = (flags & MCALL_RECEIVER) != 0 ? registers[src1[i]] : null;
+            bc = new MCall(receiver, null, new Register[x],
+                           (flags & MCALL_NEW) != 0, (flags & MCALL_TAIL) != 0);
+            break;
+        }
+        case MPARAMETER:         bc = new MParameter(d); break;
+        default:
+            throw new Error("cannot decode: " + OPCODES[opcode[i]]);
+        }
+
+        int nUses = bc.getNumberOfUses();
+        if (nUses > 0)
+            bc.setUse(0, register(registers, src1[i]));
+        if (nUses > 1)
+            bc.setUse(1, register(registers, src2[i]));
+        for (int u = 2; u < nUses; u++)
+            bc.setUse(u, register(registers, pool.get(e++)));
+        return bc;
+    }
+
+    /*
+     * Round trip check: encodes and decodes an instance of every
+     * instruction class, with and without null operands, and compares
+     * the output and the instructions the labels point to.
+     *   java ejsc.CompactCode
+     */
+    public static void main(String[] args) {
+        Register r1 = new Register(1), r2 = new Register(2), r3 = new Register(3);
+        Label entry = new Label();
+        Label forward = new Label();
+        Label detached = new Label();
+        for (Register s: new Register[] {r2, null}) {
+            List<BCode> bcodes = new ArrayList<BCode>();
+            bcodes.add(new MParameter(r1));
+            bcodes.add(new IFixnum(r1, -7));
+            bcodes.add(new INumber(r1, 0.5));
+            bcodes.add(new IString(r1, "a\nb"));
+            bcodes.add(new IBooleanconst(r1, true));
+            bcodes.add(new INullconst(r1));
+            bcodes.add(new IUndefinedconst(r1));
+            bcodes.add(new IRegexp(r1, 2, "ab*"));
+            bcodes.add(new IAdd(r1, s, r3));
+            bcodes.add(new ISub(r1, r3, s));
+            bcodes.add(new IMul(r1, s, s));
+            bcodes.add(new IDiv(r1, s, r3));
+            bcodes.add(new IMod(r1, s, r3));
+            bcodes.add(new IBitor(r1, s, r3));
+            bcodes.add(new IBitand(r1, s, r3));
+            bcodes.add(new ILeftshift(r1, s, r3));
+            bcodes.add(new IRightshift(r1, s, r3));
+            bcodes.add(new IUnsignedrightshift(r1, s, r3));
+            bcodes.add(new IEqual(r1, s, r3));
+            bcodes.add(new IEq(r1, s, r3));
+            bcodes.add(new ILessthan(r1, s, r3));
+            bcodes.add(new ILessthanequal(r1, s, r3));
+            bcodes.add(new INot(r1, s));
+            bcodes.add(new IGetglobalobj(r1));
+            bcodes.add(new INewargs());
+            bcodes.add(new INewframe(3, 1));
+            bcodes.add(new IGetglobal(r1, s));
+            bcodes.add(new ISetglobal(s, r3));
+            bcodes.add(new IGetglobalslot(r1, 4));
+            bcodes.add(new ISetglobalslot(4, s));
+            bcodes.add(new IGetlocal(r1, 1, 2));
+            bcodes.add(new ISetlocal(1, 2, s));
+            bcodes.add(new IGetarg(r1, 2, 1));
+            bcodes.add(new ISetarg(2, 1, s));
+            bcodes.add(new IGetprop(r1, s, r3));
+            bcodes.add(new ISetprop(r1, s, r3));
+            bcodes.add(new ISetarray(r1, 5, s));
+            bcodes.add(new IMakeclosure(r1, 6));
+            bcodes.add(new IGeta(r1));
+            bcodes.add(new ISeta(s));
+            bcodes.add(new IRet());
+            bcodes.add(new IMove(r1, s));
+            bcodes.add(new IIsundef(r1, s));
+            bcodes.add(new IIsobject(r1, s));
+            bcodes.add(new IInstanceof(r1, s, r3));
+            bcodes.add(new ICall(s, 2));
+            bcodes.add(new ISend(s, 2));
+            bcodes.add(new ITailcall(s, 2));
+            bcodes.add(new ITailsend(s, 2));
+            bcodes.add(new INew(r1, s));
+            bcodes.add(new INewsend(s, 2));
+            bcodes.add(new IMakeiterator(s, r1));
+            bcodes.add(new INextpropname(s, r3, r1));
+            bcodes.add(new IJump(forward));
+            bcodes.add(new IJumptrue(s, entry));
+            bcodes.add(new IJumpfalse(s, detached));
+            bcodes.add(new IThrow(s));
+            bcodes.add(new IPushhandler(forward));
+            bcodes.add(new IPophandler());
+            bcodes.add(new ILocalcall(forward));
+            bcodes.add(new ILocalret());
+            bcodes.add(new IPoplocal());
+            bcodes.add(new ISetfl(9));
+            bcodes.add(new IError(r1, "E"));
+            bcodes.add(new MSetfl());
+            bcodes.add(new MCall(null, s, new Register[] {r1, s}, false, false));
+            bcodes.add(new MCall(r3, s, new Register[] {}, true, false));
+            bcodes.add(new MCall(s, r1, new Register[] {r3, r3, s}, false, true));
+            List<Label> ls = new ArrayList<Label>();
+            ls.add(entry);
+            bcodes.get(1).addLabels(ls);
+            ls.set(0, forward);
+            bcodes.get(bcodes.size() - 2).addLabels(ls);
+            detached.replaceDestBCode(bcodes.get(3));
+
+            HashMap<Class<? extends BCode>, Boolean> seen = new HashMap<Class<? extends BCode>, Boolean>();
+            for (BCode bc: bcodes)
+                seen.put(bc.getClass(), true);
+            for (Opcode op: OPCODES)
+                if (!seen.containsKey(op.bcodeClass))
+                    throw new Error("not checked: " + op);
+
+            List<String> before = describe(bcodes, entry, forward, detached);
+            List<BCode> after = new CompactCode(bcodes, detached).toBCodes();
+            List<String> result = describe(after, entry, forward, detached);
+            if (!before.equals(result))
+                throw new Error("round trip failed:\n" + before + "\n" + result);
+        }
+        System.out.println("ok");
+    }
+
+    // instructions and the indices the labels point to
+    private static List<String> describe(List<BCode> bcodes, Label... labels) {
+        List<String> result = new ArrayList<String>();
+        IdentityHashMap<BCode, Integer> index = new IdentityHashMap<BCode, Integer>();
+        for (BCode bc: bcodes) {
+            index.put(bc, index.size());
+            result.add(bc.toString() + " " + bc.getLabels().size());
+        }
+        for (Label l: labels)
+            result.add("label " + index.get(l.getDestBCode()));
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+package ejsc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Compiler daemon.  "java -jar compiler.jar --server" reads compile
+ * requests from the standard input, one request per line, and compiles
+ * them in the same JVM.  Class loading, deserialisation of the ATNs of
+ * ECMAScriptLexer and ECMAScriptParser, their DFA caches and JIT-compiled
+ * code are shared by all requests, so only the first request pays for
+ * warming them up.
+ *
+ * A request is a line of whitespace-separated command line arguments,
+ * exactly what Main.Info.parseOption understands, e.g.
+ *
+ *     -opt-g3 -o foo.sbc foo.js
+ *
+ * With "-o -" the .sbc output is written to the standard output.
+ * Everything the compiler prints for a request is followed by a
+ * terminator line, which is either
+ *
+ *     %% ok
+ *     %% error <message>
+ *
+ * An empty line is ignored.  The server stops at "quit" or at EOF.
+ */
+public class CompileServer {
+    static final String TERMINATOR = "%%";
+
+    void serve(InputStream in, PrintStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] args = splitArguments(line);
+            if (args.length == 0)
+                continue;
+            if (args.length == 1 && args[0].equals("quit"))
+                break;
+            out.println(TERMINATOR + " " + compile(args));
+            out.flush();
+        }
+    }
+
+    // Compile a request and return its status.  A failure of a request
+    // must not stop the server.
+    String compile(String[] args) {
+        try {
+            if (new Main().run(args))
+                return "ok";
+            return "error cannot read input";
+        } catch (Throwable e) {
+            return "error " + e;
+        } finally {
+            System.out.flush();
+        }
+    }
+
+    static String[] splitArguments(String line) {
+        List<String> args = new ArrayList<String>();
+        for (String s : line.trim().split("\\s+")) {
+            if (!s.isEmpty())
+                args.add(s);
+        }
+        return args.toArray(new String[args.size()]);
+    }
+}
@@ -0,0 +1,526 @@
+package ejsc;
+
+import java.util.List;
+
+/*
+ * Folds operators applied to literals and simplifies expressions whose
+ * operand types are evident.
+ *
+ * Folding follows ES5 and gives up where the result has no literal
+ * representation (NaN, infinities and -0), or where it needs ToNumber of
+ * a string or ToString of a non-integral number.  Bitwise operators and
+ * shifts are folded only for int32 operands and shift counts below 32,
+ * on which CodeGenerator (~x is compiled as -x-1) and the VM agree with
+ * ES5.  typeof and void are left to CodeGenerator.
+ *
+ * Simplifications:
+ *   x|0, x^0, x<<0, x>>0, x&-1 and ~~x  -> x   if x is an int32
+ *   x>>>0                               -> x   if x is a uint32
+ *   !!x                                 -> x   if x is a boolean
+ *   +x, -(-x)                           -> x   if x is a number
+ *   lit && x, lit || x, lit ? x : y     -> the operand selected
+ *   if (lit) s1 else s2                 -> the statement selected
+ */
+class ConstantFolder extends IASTBaseVisitor {
+    void fold(IASTProgram program) {
+        program.program.body.accept(this);
+    }
+
+    IASTExpression fold(IASTExpression e) {
+        if (e == null)
+            return null;
+        IASTExpression result = (IASTExpression) e.accept(this);
+        return result == null ? e : result;
+    }
+
+    void fold(List<IASTExpression> exps) {
+        for (int i = 0; i < exps.size(); i++)
+            exps.set(i, fold(exps.get(i)));
+    }
+
+    IASTStatement fold(IASTStatement s) {
+        if (s == null)
+            return null;
+        s.accept(this);
+        if (s instanceof IASTIfStatement) {
+            IASTIfStatement ifStmt = (IASTIfStatement) s;
+            if (ifStmt.test instanceof IASTLiteral && !(ifStmt.test instanceof IASTRegExpLiteral)) {
+                if (toBoolean((IASTLiteral) ifStmt.test))
+                    return ifStmt.consequent;
+                return ifStmt.alternate == null ? new IASTEmptyStatement() : ifStmt.alternate;
+            }
+        }
+        return s;
+    }
+
+    /*
+     * Values of literals.
+     */
+
+    static boolean isConstant(IASTExpression e) {
+        return e instanceof IASTLiteral && !(e instanceof IASTRegExpLiteral);
+    }
+
+    static boolean isNumber(IASTExpression e) {
+        return e instanceof IASTNumericLiteral;
+    }
+
+    static double numberValue(IASTExpression e) {
+        return ((IASTNumericLiteral) e).value;
+    }
+
+    static boolean isInt32Value(double d) {
+        return d == (int) d && !isNegativeZero(d);
+    }
+
+    static boolean isNegativeZero(double d) {
+        return d == 0 && 1 / d < 0;
+    }
+
+    static boolean toBoolean(IASTLiteral lit) {
+        if (lit instanceof IASTBooleanLiteral)
+            return ((IASTBooleanLiteral) lit).value;
+        if (lit instanceof IASTNumericLiteral) {
+            double d = ((IASTNumericLiteral) lit).value;
+            return !(d == 0 || Double.isNaN(d));
+        }
+        if (lit instanceof IASTStringLiteral)
+            return ((IASTStringLiteral) lit).value.length() > 0;
+        return false;  // null and undefined
+    }
+
+    // ToString, or null if not simple
+    static String toPrimitiveString(IASTLiteral lit) {
+        if (lit instanceof IASTStringLiteral)
+            return ((IASTStringLiteral) lit).value;
+        if (lit instanceof IASTBooleanLiteral)
+            return ((IASTBooleanLiteral) lit).value ? "true" : "false";
+        if (lit instanceof IASTNullLiteral)
+            return "null";
+        if (lit instanceof IASTUndefinedLiteral)
+            return "undefined";
+        // Integers up to 2^53 print all their digits.  Larger ones print
+        // the shortest digits that round to them, which is not done here.
+        double d = ((IASTNumericLiteral) lit).value;
+        if (d == Math.rint(d) && Math.abs(d) <= 9007199254740992.0)
+            return Long.toString((long) d);
+        return null;
+    }
+
+    static IASTExpression numericLiteral(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d) || isNegativeZero(d))
+            return null;
+        return new IASTNumericLiteral(d);
+    }
+
+    /*
+     * Types evident from the expression.
+     */
+
+    static boolean isInt32(IASTExpression e) {
+        if (e instanceof IASTNumericLiteral)
+            return isInt32Value(numberValue(e));
+        if (e instanceof IASTBinaryExpression) {
+            switch (((IASTBinaryExpression) e).operator) {
+            case BAND: case BOR: case BXOR: case SHL: case SHR:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static boolean isBoolean(IASTExpression e) {
+        if (e instanceof IASTBooleanLiteral)
+            return true;
+        if (e instanceof IASTUnaryExpression)
+            return ((IASTUnaryExpression) e).operator == IASTUnaryExpression.Operator.NOT;
+        if (e instanceof IASTBinaryExpression) {
+            switch (((IASTBinaryExpression) e).operator) {
+            case EQUAL: case NOT_EQUAL: case EQ: case NOT_EQ:
+            case LT: case LTE: case GT: case GTE: case IN: case INSTANCE_OF:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static boolean isNumberTyped(IASTExpression e) {
+        if (e instanceof IASTNumericLiteral || isInt32(e))
+            return true;
+        if (e instanceof IASTUnaryExpression) {
+            switch (((IASTUnaryExpression) e).operator) {
+            case MINUS: case BNOT:
+                return true;
+            case PLUS:  // compiled to its operand
+                return isNumberTyped(((IASTUnaryExpression) e).operands[0]);
+            default:
+                return false;
+            }
+        }
+        if (e instanceof IASTBinaryExpression) {
+            switch (((IASTBinaryExpression) e).operator) {
+            case SUB: case MUL: case DIV: case MOD: case UNSIGNED_SHR:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static boolean isUnary(IASTExpression e, IASTUnaryExpression.Operator op) {
+        return e instanceof IASTUnaryExpression && ((IASTUnaryExpression) e).operator == op;
+    }
+
+    static boolean isNumber(IASTExpression e, double d) {
+        return isNumber(e) && numberValue(e) == d && !isNegativeZero(numberValue(e));
+    }
+
+    /*
+     * Expressions.  Each visitor returns the expression to replace the
+     * node with, or null to keep it.
+     */
+
+    @Override
+    public Object visitUnaryExpression(IASTUnaryExpression node) {
+        node.operands[0] = fold(node.operands[0]);
+        IASTExpression x = node.operands[0];
+        switch (node.operator) {
+        case PLUS:
+            if (isNumberTyped(x))
+                return x;
+            break;
+        case MINUS:
+            if (isNumber(x))
+                return numericLiteral(-numberValue(x));
+            if (isUnary(x, IASTUnaryExpression.Operator.MINUS) && isNumberTyped(((IASTUnaryExpression) x).operands[0]))
+                return ((IASTUnaryExpression) x).operands[0];
+            break;
+        case NOT:
+            if (isConstant(x))
+                return new IASTBooleanLiteral(!toBoolean((IASTLiteral) x));
+            if (isUnary(x, IASTUnaryExpression.Operator.NOT) && isBoolean(((IASTUnaryExpression) x).operands[0]))
+                return ((IASTUnaryExpression) x).operands[0];
+            break;
+        case BNOT:
+            if (isNumber(x) && isInt32Value(numberValue(x)))
+                return numericLiteral(~(int) numberValue(x));
+            if (isUnary(x, IASTUnaryExpression.Operator.BNOT) && isInt32(((IASTUnaryExpression) x).operands[0]))
+                return ((IASTUnaryExpression) x).operands[0];
+            break;
+        default:
+            break;
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpression(IASTBinaryExpression node) {
+        node.operands[0] = fold(node.operands[0]);
+        node.operands[1] = fold(node.operands[1]);
+        IASTExpression x = node.operands[0];
+        IASTExpression y = node.operands[1];
+        switch (node.operator) {
+        case AND:
+            if (isConstant(x))
+                return toBoolean((IASTLiteral) x) ? y : x;
+            return null;
+        case OR:
+            if (isConstant(x))
+                return toBoolean((IASTLiteral) x) ? x : y;
+            return null;
+        case BOR: case BXOR: case SHL: case SHR:
+            if (isInt32(x) && isNumber(y, 0))
+                return x;
+            if ((node.operator == IASTBinaryExpression.Operator.BOR ||
+                 node.operator == IASTBinaryExpression.Operator.BXOR) && isNumber(x, 0) && isInt32(y))
+                return y;
+            break;
+        case BAND:
+            if (isInt32(x) && isNumber(y, -1))
+                return x;
+            if (isNumber(x, -1) && isInt32(y))
+                return y;
+            break;
+        case UNSIGNED_SHR:
+            if (x instanceof IASTBinaryExpression &&
+                    ((IASTBinaryExpression) x).operator == IASTBinaryExpression.Operator.UNSIGNED_SHR &&
+                    isNumber(y, 0))
+                return x;
+            break;
+        default:
+            break;
+        }
+        if (isConstant(x) && isConstant(y))
+            return foldBinary(node.operator, (IASTLiteral) x, (IASTLiteral) y);
+        return null;
+    }
+
+    static IASTExpression foldBinary(IASTBinaryExpression.Operator op, IASTLiteral x, IASTLiteral y) {
+        if (op == IASTBinaryExpression.Operator.ADD &&
+                (x instanceof IASTStringLiteral || y instanceof IASTStringLiteral)) {
+            String s1 = toPrimitiveString(x);
+            String s2 = toPrimitiveString(y);
+            if (s1 == null || s2 == null)
+                return null;
+            return new IASTStringLiteral(s1 + s2);
+        }
+        switch (op) {
+        case EQ: case NOT_EQ: case EQUAL: case NOT_EQUAL: {
+            Boolean eq = strictEquals(x, y);
+            boolean loose = op == IASTBinaryExpression.Operator.EQUAL || op == IASTBinaryExpression.Operator.NOT_EQUAL;
+            if (loose && x.getClass() != y.getClass()) {
+                boolean xNullish = x instanceof IASTNullLiteral || x instanceof IASTUndefinedLiteral;
+                boolean yNullish = y instanceof IASTNullLiteral || y instanceof IASTUndefinedLiteral;
+                if (xNullish && yNullish)
+                    eq = true;
+                else if (xNullish || yNullish)
+                    eq = false;
+                else
+                    eq = null;  // needs ToNumber
+            }
+            if (eq == null)
+                return null;
+            boolean negate = op == IASTBinaryExpression.Operator.NOT_EQ || op == IASTBinaryExpression.Operator.NOT_EQUAL;
+            return new IASTBooleanLiteral(eq != negate);
+        }
+        case LT: case LTE: case GT: case GTE:
+            if (x instanceof IASTStringLiteral && y instanceof IASTStringLiteral) {
+                int c = ((IASTStringLiteral) x).value.compareTo(((IASTStringLiteral) y).value);
+                switch (op) {
+                case LT:  return new IASTBooleanLiteral(c < 0);
+                case LTE: return new IASTBooleanLiteral(c <= 0);
+                case GT:  return new IASTBooleanLiteral(c > 0);
+                default:  return new IASTBooleanLiteral(c >= 0);
+                }
+            }
+            if (x instanceof IASTNumericLiteral && y instanceof IASTNumericLiteral) {
+                // comparisons with NaN are false
+                double a = numberValue(x), b = numberValue(y);
+                switch (op) {
+                case LT:  return new IASTBooleanLiteral(a < b);
+                case LTE: return new IASTBooleanLiteral(a <= b);
+                case GT:  return new IASTBooleanLiteral(a > b);
+                default:  return new IASTBooleanLiteral(a >= b);
+                }
+            }
+            return null;
+        default:
+            break;
+        }
+        if (!(x instanceof IASTNumericLiteral && y instanceof IASTNumericLiteral))
+            return null;
+        double a = numberValue(x), b = numberValue(y);
+        switch (op) {
+        case ADD: return numericLiteral(a + b);
+        case SUB: return numericLiteral(a - b);
+        case MUL: return numericLiteral(a * b);
+        case DIV: return numericLiteral(a / b);
+        case MOD: return numericLiteral(a % b);
+        default:
+            break;
+        }
+        if (!isInt32Value(a) || !isInt32Value(b))
+            return null;
+        int i = (int) a, j = (int) b;
+        switch (op) {
+        case BAND: return numericLiteral(i & j);
+        case BOR:  return numericLiteral(i | j);
+        case BXOR: return numericLiteral(i ^ j);
+        case SHL:
+            return 0 <= j && j < 32 ? numericLiteral(i << j) : null;
+        case SHR:
+            return 0 <= j && j < 32 ? numericLiteral(i >> j) : null;
+        case UNSIGNED_SHR:
+            return 0 <= j && j < 32 ? numericLiteral((i & 0xffffffffL) >>> j) : null;
+        default:
+            return null;
+        }
+    }
+
+    // ===, or null if unknown
+    static Boolean strictEquals(IASTLiteral x, IASTLiteral y) {
+        if (x.getClass() != y.getClass())
+            return false;
+        if (x instanceof IASTNumericLiteral)
+            return numberValue(x) == numberValue(y);  // NaN != NaN, 0 == -0
+        if (x instanceof IASTStringLiteral)
+            return ((IASTStringLiteral) x).value.equals(((IASTStringLiteral) y).value);
+        if (x instanceof IASTBooleanLiteral)
+            return ((IASTBooleanLiteral) x).value == ((IASTBooleanLiteral) y).value;
+        return true;  // null, undefined
+    }
+
+    @Override
+    public Object visitTernaryExpression(IASTTernaryExpression node) {
+        for (int i = 0; i < node.operands.length; i++)
+            node.operands[i] = fold(node.operands[i]);
+        if (isConstant(node.operands[0]))
+            return toBoolean((IASTLiteral) node.operands[0]) ? node.operands[1] : node.operands[2];
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpression(IASTCallExpression node) {
+        node.callee = fold(node.callee);
+        fold(node.arguments);
+        return null;
+    }
+
+    @Override
+    public Object visitNewExpression(IASTNewExpression node) {
+        node.constructor = fold(node.constructor);
+        fold(node.arguments);
+        return null;
+    }
+
+    @Override
+    public Object visitMemberExpression(IASTMemberExpression node) {
+        node.object = fold(node.object);
+        node.property = fold(node.property);
+        return null;
+    }
+
+    @Override
+    public Object visitSequenceExpression(IASTSequenceExpression node) {
+        fold(node.expressions);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayExpression(IASTArrayExpression node) {
+        fold(node.elements);
+        return null;
+    }
+
+    @Override
+    public Object visitObjectExpression(IASTObjectExpression node) {
+        for (IASTObjectExpression.Property p : node.properties)
+            p.value = fold(p.value);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        node.body = fold(node.body);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteral(IASTLiteral node) {
+        return null;
+    }
+
+    @Override
+    public Object visitIdentifier(IASTIdentifier node) {
+        return null;
+    }
+
+    @Override
+    public Object visitThisExpression(IASTThisExpression node) {
+        return null;
+    }
+
+    /*
+     * Statements
+     */
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (int i = 0; i < node.stmts.size(); i++)
+            node.stmts.set(i, fold(node.stmts.get(i)));
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(IASTExpressionStatement node) {
+        node.exp = fold(node.exp);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(IASTReturnStatement node) {
+        node.value = fold(node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitWithStatement(IASTWithStatement node) {
+        node.object = fold(node.object);
+        node.body = fold(node.body);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IASTIfStatement node) {
+        node.test = fold(node.test);
+        node.consequent = fold(node.consequent);
+        node.alternate = fold(node.alternate);
+        return null;
+    }
+
+    @Override
+    public Object visitSwitchStatement(IASTSwitchStatement node) {
+        node.discriminant = fold(node.discriminant);
+        for (IASTSwitchStatement.CaseClause c : node.cases) {
+            c.test = fold(c.test);
+            c.consequent = fold(c.consequent);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitThrowStatement(IASTThrowStatement node) {
+        node.value = fold(node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+        node.body = fold(node.body);
+        node.handler = fold(node.handler);
+        return null;
+    }
+
+    @Override
+    public Object visitTryFinallyStatement(IASTTryFinallyStatement node) {
+        node.body = fold(node.body);
+        node.finaliser = fold(node.finaliser);
+        return null;
+    }
+
+    @Override
+    public Object visitForStatement(IASTForStatement node) {
+        node.init = fold(node.init);
+        node.test = fold(node.test);
+        node.update = fold(node.update);
+        node.body = fold(node.body);
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStatement(IASTWhileStatement node) {
+        node.test = fold(node.test);
+        node.body = fold(node.body);
+        return null;
+    }
+
+    @Override
+    public Object visitDoWhileStatement(IASTDoWhileStatement node) {
+        node.test = fold(node.test);
+        node.body = fold(node.body);
+        return null;
+    }
+
+    @Override
+    public Object visitForInStatement(IASTForInStatement node) {
+        node.object = fold(node.object);
+        node.body = fold(node.body);
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+package ejsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Finds parameters to which every caller passes the same literal.
+ *
+ * Applied to functions declared in the program top level and bound to
+ * a global variable that is never written again (see
+ * FunctionBindingAnalyzer), whose name is used only as the callee of
+ * calls and new expressions.  All call sites of such a function are then
+ * known.  If every call site passes the same literal for a parameter that
+ * the function never writes, the literal is recorded in
+ * IASTFunctionExpression.constantParams, and CodeGenerator loads it into
+ * the parameter register on entry so that ConstantPropagation folds its
+ * uses.  Functions that use arguments are excluded.
+ *
+ * A function may also be called through the global object, e.g.,
+ * this["f"](2).  As in GlobalSlotAnalyzer, names that appear as a string
+ * literal or a property name count as escaped, and nothing is done if the
+ * program uses eval or with.
+ */
+class ConstantParameterAnalyzer extends IASTBaseVisitor {
+    HashMap<String, IASTFunctionExpression> candidates = new HashMap<String, IASTFunctionExpression>();
+    HashSet<String> escaped = new HashSet<String>();
+    HashMap<String, List<List<IASTExpression>>> callSites = new HashMap<String, List<List<IASTExpression>>>();
+    LinkedList<HashSet<String>> scopes = new LinkedList<HashSet<String>>();
+    FunctionBindingAnalyzer analyzer = new FunctionBindingAnalyzer();
+    boolean dynamic = false;
+
+    void analyze(IASTProgram program) {
+        analyzer.analyze(program);
+        program.program.body.accept(new DeclarationFinder());
+        if (candidates.isEmpty())
+            return;
+        program.program.body.accept(this);
+        if (dynamic)
+            return;
+        for (String name : candidates.keySet()) {
+            if (escaped.contains(name) || !callSites.containsKey(name))
+                continue;
+            IASTFunctionExpression func = candidates.get(name);
+            for (int i = 0; i < func.params.size(); i++) {
+                IASTLiteral value = commonArgument(callSites.get(name), i);
+                if (value == null || isWritten(func, func.params.get(i)))
+                    continue;
+                if (func.constantParams == null)
+                    func.constantParams = new HashMap<String, IASTLiteral>();
+                func.constantParams.put(func.params.get(i), value);
+            }
+        }
+    }
+
+    // Finds function declarations in the program top level.
+    class DeclarationFinder extends IASTBaseVisitor {
+        @Override
+        public Object visitBlockStatement(IASTBlockStatement node) {
+            for (IASTStatement s : node.stmts) {
+                if (s != null)
+                    s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            FunctionBindingAnalyzer.Variable v = analyzer.getBinding(node);
+            if (v != null && v.isGlobal() && node.isDeclaration &&
+                    new HashSet<String>(node.params).size() == node.params.size() &&
+                    !TailRecursionElimination.usedNames(node.body).contains("arguments"))
+                candidates.put(v.name, node);
+            return null;
+        }
+    }
+
+    boolean isWritten(IASTFunctionExpression func, String param) {
+        for (FunctionBindingAnalyzer.Variable v : analyzer.variables) {
+            if (v.scope == func && v.name.equals(param))
+                return v.writes != 1;
+        }
+        return true;
+    }
+
+    static boolean isSameLiteral(IASTLiteral a, IASTLiteral b) {
+        if (a.getClass() != b.getClass())
+            return false;
+        if (a instanceof IASTNumericLiteral)
+            return Double.compare(((IASTNumericLiteral) a).value, ((IASTNumericLiteral) b).value) == 0;
+        if (a instanceof IASTStringLiteral)
+            return ((IASTStringLiteral) a).value.equals(((IASTStringLiteral) b).value);
+        if (a instanceof IASTBooleanLiteral)
+            return ((IASTBooleanLiteral) a).value == ((IASTBooleanLiteral) b).value;
+        return a instanceof IASTNullLiteral || a instanceof IASTUndefinedLiteral;
+    }
+
+    // Returns the literal passed as the i-th argument at all call sites,
+    // or null.
+    static IASTLiteral commonArgument(List<List<IASTExpression>> sites, int i) {
+        IASTLiteral value = null;
+        for (List<IASTExpression> args : sites) {
+            if (i >= args.size() || !(args.get(i) instanceof IASTLiteral) ||
+                    args.get(i) instanceof IASTRegExpLiteral)
+                return null;
+            IASTLiteral arg = (IASTLiteral) args.get(i);
+            if (value == null)
+                value = arg;
+            else if (!isSameLiteral(value, arg))
+                return null;
+        }
+        return value;
+    }
+
+    boolean isDeclared(String name) {
+        for (HashSet<String> s : scopes) {
+            if (s.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    void addCallSite(IASTExpression callee, List<IASTExpression> arguments) {
+        String name = ((IASTIdentifier) callee).id;
+        if (!candidates.containsKey(name) || isDeclared(name))
+            return;
+        List<List<IASTExpression>> sites = callSites.get(name);
+        if (sites == null) {
+            sites = new ArrayList<List<IASTExpression>>();
+            callSites.put(name, sites);
+        }
+        sites.add(arguments);
+    }
+
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        HashSet<String> declared = new HashSet<String>(node.params);
+        declared.addAll(node.locals);
+        declared.add("arguments");
+        scopes.push(declared);
+        node.body.accept(this);
+        scopes.pop();
+        return null;
+    }
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+        node.body.accept(this);
+        HashSet<String> declared = new HashSet<String>();
+        declared.add(node.param);
+        scopes.push(declared);
+        node.handler.accept(this);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Object visitIdentifier(IASTIdentifier node) {
+        if ("eval".equals(node.id))
+            dynamic = true;
+        if (!isDeclared(node.id))
+            escaped.add(node.id);
+        return null;
+    }
+
+    @Override
+    public Object visitStringLiteral(IASTStringLiteral node) {
+        escaped.add(node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitWithStatement(IASTWithStatement node) {
+        dynamic = true;
+        return super.visitWithStatement(node);
+    }
+
+    // The declaration "f = function ..." does not let f escape.
+    @Override
+    public Object visitBinaryExpression(IASTBinaryExpression node) {
+        if (node.operator == IASTBinaryExpression.Operator.ASSIGN && node.operands[0] instanceof IASTIdentifier) {
+            node.operands[1].accept(this);
+            return null;
+        }
+        return super.visitBinaryExpression(node);
+    }
+
+    @Override
+    public Object visitCallExpression(IASTCallExpression node) {
+        if (node.callee instanceof IASTIdentifier) {
+            if ("eval".equals(((IASTIdentifier) node.callee).id))
+                dynamic = true;
+            addCallSite(node.callee, node.arguments);
+        } else
+            node.callee.accept(this);
+        for (IASTExpression arg : node.arguments)
+            arg.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitNewExpression(IASTNewExpression node) {
+        if (node.constructor instanceof IASTIdentifier)
+            addCallSite(node.constructor, node.arguments);
+        else
+            node.constructor.accept(this);
+        for (IASTExpression arg : node.arguments)
+            arg.accept(this);
+        return null;
+    }
+}
@@ -43,16 +43,7 @@ public class ConstantPropagation {
 			}
 						
 			private BCode findDefinition(BCode bc, Register src) {
-				BCode result = null;
-				for (BCode def: rdefa.getReachingDefinitions(bc)) {
-					if (def.getDestRegister() == src) {
-						if (result == null)
-							result = def;
-						else
-							return null;
-					}
-				}
-				return result;
+				return rdefa.getUniqueReachingDefinition(bc, src);
 			}
 			
 			private Value findAndEvalDefinition(BCode bc, Register src) {
@@ -20,64 +20,200 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 
+/*
+ * Control flow graph over basic blocks.
+ *
+ * Blocks are numbered from 0 in the order of the code, block 0 being the
+ * entry, and edges are kept in int arrays.  Analyses keep their data in
+ * arrays indexed by block ids or instruction indices, so that they need
+ * no hashing while iterating.  A BCode is mapped to its index only when
+ * looked up from outside.
+ */
 public class ControlFlowGraph {
-	static class CFGNode {
-		private HashSet<CFGNode> pred = new HashSet<CFGNode>();
-		private HashSet<CFGNode> succ = new HashSet<CFGNode>();
-		private BCode bcode;
-		CFGNode(BCode bcode) {
-			this.bcode = bcode;
+	static class BasicBlock {
+		private final int id;
+		private final int start;  // index of the first instruction
+		private final int end;    // index of the last instruction + 1
+		private int[] succs;
+		private int[] preds;
+		BasicBlock(int id, int start, int end) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+		}
+		public int getId() {
+			return id;
 		}
-		void addPred(CFGNode n) {
-			pred.add(n);
+		public int getStart() {
+			return start;
 		}
-		void addSucc(CFGNode n) {
-			succ.add(n);
+		public int getEnd() {
+			return end;
 		}
-		public BCode getBCode() {
-			return bcode;
+		public int getFirst() {
+			return start;
 		}
-		public HashSet<CFGNode> getPreds() {
-			return pred;
+		public int getLast() {
+			return end - 1;
 		}
-		public HashSet<CFGNode> getSuccs() {
-			return succ;
+		public int[] getSuccs() {
+			return succs;
+		}
+		public int[] getPreds() {
+			return preds;
 		}
 	}
-	private HashMap<BCode, CFGNode> cfg = new HashMap<BCode, CFGNode>();
-	
-	ControlFlowGraph(List<BCode> bcodes) {
-		for (BCode bc: bcodes)
-			cfg.put(bc, new CFGNode(bc));
-		for (int i = 0; i < bcodes.size(); i++) {
-			BCode bc = bcodes.get(i);
-			CFGNode cfgNode = cfg.get(bc);
-			if (bc.isFallThroughInstruction()) {
-				BCode destBC = bcodes.get(i + 1);
-				makeEdge(cfgNode, destBC);
-			}
+
+	private final BCode[] bcodes;
+	private final IdentityHashMap<BCode, Integer> index;
+	private final int[] blockOf;
+	private final BasicBlock[] blocks;
+	private final int[] order;
+	private final int numberOfReachableBlocks;
+
+	ControlFlowGraph(List<BCode> bcodeList) {
+		bcodes = bcodeList.toArray(new BCode[bcodeList.size()]);
+		int n = bcodes.length;
+		index = new IdentityHashMap<BCode, Integer>(n);
+		for (int i = 0; i < n; i++)
+			index.put(bcodes[i], i);
+
+		// leaders
+		int[] target = new int[n];
+		boolean[] leader = new boolean[n + 1];
+		leader[0] = true;
+		for (int i = 0; i < n; i++) {
+			BCode bc = bcodes[i];
 			BCode destBC = bc.getBranchTarget();
-			if (destBC != null)
-				makeEdge(cfgNode, destBC);
+			target[i] = destBC == null ? -1 : index.get(destBC);
+			if (target[i] >= 0) {
+				leader[target[i]] = true;
+				leader[i + 1] = true;
+			}
+			if (!bc.isFallThroughInstruction())
+				leader[i + 1] = true;
+		}
+
+		// blocks
+		blockOf = new int[n];
+		ArrayList<BasicBlock> blockList = new ArrayList<BasicBlock>();
+		for (int i = 0; i < n; ) {
+			int j = i + 1;
+			while (j < n && !leader[j])
+				j++;
+			BasicBlock b = new BasicBlock(blockList.size(), i, j);
+			for (int k = i; k < j; k++)
+				blockOf[k] = b.id;
+			blockList.add(b);
+			i = j;
+		}
+		blocks = blockList.toArray(new BasicBlock[blockList.size()]);
+
+		// edges
+		int[] nPreds = new int[blocks.length];
+		for (BasicBlock b: blocks) {
+			int last = b.getLast();
+			int fallThrough = bcodes[last].isFallThroughInstruction() && last + 1 < n ? blockOf[last + 1] : -1;
+			int branch = target[last] >= 0 ? blockOf[target[last]] : -1;
+			if (fallThrough >= 0 && branch >= 0 && fallThrough != branch)
+				b.succs = new int[] {fallThrough, branch};
+			else if (fallThrough >= 0)
+				b.succs = new int[] {fallThrough};
+			else if (branch >= 0)
+				b.succs = new int[] {branch};
+			else
+				b.succs = new int[0];
+			for (int s: b.succs)
+				nPreds[s]++;
+		}
+		for (BasicBlock b: blocks)
+			b.preds = new int[nPreds[b.id]];
+		int[] filled = new int[blocks.length];
+		for (BasicBlock b: blocks)
+			for (int s: b.succs)
+				blocks[s].preds[filled[s]++] = b.id;
+
+		// reverse postorder from the entry, then unreachable blocks
+		order = new int[blocks.length];
+		boolean[] visited = new boolean[blocks.length];
+		int pos = blocks.length;
+		if (blocks.length > 0)
+			pos = postorder(0, visited, order, pos);
+		numberOfReachableBlocks = blocks.length - pos;
+		int[] reachable = new int[numberOfReachableBlocks];
+		System.arraycopy(order, pos, reachable, 0, numberOfReachableBlocks);
+		System.arraycopy(reachable, 0, order, 0, numberOfReachableBlocks);
+		int k = numberOfReachableBlocks;
+		for (BasicBlock b: blocks)
+			if (!visited[b.id])
+				order[k++] = b.id;
+	}
+
+	// Fills result backwards from pos in postorder; returns the new pos.
+	private int postorder(int entry, boolean[] visited, int[] result, int pos) {
+		int[] stack = new int[blocks.length];
+		int[] nextSucc = new int[blocks.length];
+		int sp = 0;
+		stack[sp++] = entry;
+		visited[entry] = true;
+		while (sp > 0) {
+			int b = stack[sp - 1];
+			int[] succs = blocks[b].succs;
+			if (nextSucc[b] < succs.length) {
+				int s = succs[nextSucc[b]++];
+				if (!visited[s]) {
+					visited[s] = true;
+					stack[sp++] = s;
+				}
+			} else {
+				result[--pos] = b;
+				sp--;
+			}
 		}
+		return pos;
+	}
+
+	public int getNumberOfBlocks() {
+		return blocks.length;
+	}
+
+	public BasicBlock getBlock(int id) {
+		return blocks[id];
+	}
+
+	public BasicBlock getEntry() {
+		return blocks[0];
+	}
+
+	// Block ids in reverse postorder from the entry, followed by blocks
+	// unreachable from the entry.
+	public int[] getOrder() {
+		return order;
+	}
+
+	public int getNumberOfReachableBlocks() {
+		return numberOfReachableBlocks;
+	}
+
+	public int getNumberOfInstructions() {
+		return bcodes.length;
 	}
-	
-	private void makeEdge(CFGNode from, BCode toBC) {
-		CFGNode to = cfg.get(toBC);
-		from.addSucc(to);
-		to.addPred(from);
+
+	public BCode getBCode(int i) {
+		return bcodes[i];
 	}
-	
-	public Collection<CFGNode> getNodes() {
-		return cfg.values();
+
+	public int getBlockOf(int i) {
+		return blockOf[i];
 	}
-	
-	public CFGNode get(BCode bc) {
-		return cfg.get(bc);
+
+	// index of bc, or -1 if bc is not in the graph
+	public int indexOf(BCode bc) {
+		Integer i = index.get(bc);
+		return i == null ? -1 : i;
 	}
 }
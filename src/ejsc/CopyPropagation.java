@@ -20,12 +20,7 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import java.lang.reflect.Field;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-
-import ejsc.ControlFlowGraph.CFGNode;
 
 public class CopyPropagation {
 	List<BCode> bcodes;
@@ -50,72 +45,60 @@ public class CopyPropagation {
 	}
 	
 	private BCode findDefinition(BCode bc, Register src) {
-		BCode result = null;
-		for (BCode def: rda.getReachingDefinitions(bc)) {
-			if (def.getDestRegister() == src) {
-				if (result == null)
-					result = def;
-				else
-					return null;
-			}
-		}
-		return result;
+		return rda.getUniqueReachingDefinition(bc, src);
 	}
 	
-	private boolean dfs(CFGNode n, CFGNode to, Register r, boolean defined, HashMap<CFGNode, Boolean> visited) {
-		if (n == to && defined)
-			return true;
-		Boolean v = visited.get(n);
-		if (v != null && (v || !defined))
-			return false;
-		visited.put(n, defined);
-		
-		if (n.getBCode().getDestRegister() == r)
-			defined = true;
-		for (CFGNode succ: n.getSuccs()) {
-			if (dfs(succ, to, r, defined, visited))
+	// Searches the pairs of an instruction and whether r has been defined
+	// on the path so far.  Having been defined subsumes not.
+	private boolean isDefinedOnAnyPath(BCode fromBC, BCode toBC, Register r) {
+		int n = cfg.getNumberOfInstructions();
+		int to = cfg.indexOf(toBC);
+		boolean[] seenUndefined = new boolean[n];
+		boolean[] seenDefined = new boolean[n];
+		int[] stack = new int[4 * n + 1];
+		boolean[] definedStack = new boolean[4 * n + 1];
+		int sp = 0;
+		stack[sp] = cfg.indexOf(fromBC);
+		definedStack[sp++] = false;
+		while (sp > 0) {
+			int i = stack[--sp];
+			boolean defined = definedStack[sp];
+			if (i == to && defined)
 				return true;
+			if (seenDefined[i] || (!defined && seenUndefined[i]))
+				continue;
+			if (defined)
+				seenDefined[i] = true;
+			else
+				seenUndefined[i] = true;
+			
+			if (cfg.getBCode(i).getDestRegister() == r)
+				defined = true;
+			ControlFlowGraph.BasicBlock b = cfg.getBlock(cfg.getBlockOf(i));
+			if (i < b.getLast()) {
+				stack[sp] = i + 1;
+				definedStack[sp++] = defined;
+			} else
+				for (int succ: b.getSuccs()) {
+					stack[sp] = cfg.getBlock(succ).getFirst();
+					definedStack[sp++] = defined;
+				}
 		}
 		return false;
 	}
 	
-	private boolean isDefinedOnAnyPath(BCode fromBC, BCode toBC, Register r) {
-		HashMap<CFGNode, Boolean> visited = new HashMap<CFGNode, Boolean>();
-		CFGNode from = cfg.get(fromBC);
-		CFGNode to = cfg.get(toBC);
-		return dfs(from, to, r, false, visited);
-	}
-	
 	public void exec() {
 		boolean update = true;
 		while (update) {
 			update = false;
-			for (ControlFlowGraph.CFGNode n: cfg.getNodes()) {
-				BCode bcx = n.getBCode();
-				try {
-					Class<? extends BCode> c = bcx.getClass();
-					for (Field f: c.getDeclaredFields()) {
-						if (f.getType() == Register.class) {
-							Register r = (Register) f.get(bcx);
-							Register rr = getReplaceRegister(bcx, r);
-							if (rr != null) {
-								update = true;
-								f.set(bcx, rr);
-							}
-						} else if (f.getType() == Register[].class) {
-							Register[] rs = (Register[]) f.get(bcx);
-							for (int i = 0; i < rs.length; i++) {
-								Register r = rs[i];
-								Register rr = getReplaceRegister(bcx, r);
-								if (rr != null) {
-									update = true;
-									rs[i] = rr;
-								}
-							}
-						}
+			for (int k = 0; k < cfg.getNumberOfInstructions(); k++) {
+				BCode bcx = cfg.getBCode(k);
+				for (int i = 0; i < bcx.getNumberOfUses(); i++) {
+					Register rr = getReplaceRegister(bcx, bcx.getUse(i));
+					if (rr != null) {
+						update = true;
+						bcx.setUse(i, rr);
 					}
-				} catch (Exception e) {
-					throw new Error(e);
 				}
 			}
 		}
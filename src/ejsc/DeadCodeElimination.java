@@ -1,41 +1,34 @@
 package ejsc;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
-import ejsc.ControlFlowGraph.CFGNode;
-
 public class DeadCodeElimination {
     List<BCode> bcodes;
     ControlFlowGraph cfg;
-    HashSet<BCode> live;
+    boolean[] live;
     
     public DeadCodeElimination(List<BCode> bcodes) {
         this.bcodes = bcodes;
         cfg = new ControlFlowGraph(bcodes);
-        live = new HashSet<BCode>();
-        dfs(cfg.get(bcodes.get(0)));
-    }
-    
-    private void dfs(CFGNode node) {
-        if (live.contains(node.getBCode()))
-            return;
-        live.add(node.getBCode());
-        for (CFGNode next: node.getSuccs())
-            dfs(next);
+        live = new boolean[cfg.getNumberOfInstructions()];
+        int[] order = cfg.getOrder();
+        for (int k = 0; k < cfg.getNumberOfReachableBlocks(); k++) {
+            ControlFlowGraph.BasicBlock b = cfg.getBlock(order[k]);
+            for (int i = b.getFirst(); i <= b.getLast(); i++)
+                live[i] = true;
+        }
     }
     
     public List<BCode> exec() {
-        List<BCode> newBCodes = new ArrayList<BCode>(live.size());
-        for (BCode bc: bcodes) {
-            if (live.contains(bc))
+        List<BCode> newBCodes = new ArrayList<BCode>(bcodes.size());
+        for (int i = 0; i < cfg.getNumberOfInstructions(); i++) {
+            BCode bc = cfg.getBCode(i);
+            if (live[i]) {
                 newBCodes.add(bc);
-            else if (bc.getLabels().size() > 0) {
-                for (BCode b: bcodes) {
-                    if (b.getBranchTarget() == bc && live.contains(b))
-                        throw new Error("internal error");                            
-                }
+                BCode target = bc.getBranchTarget();
+                if (target != null && !live[cfg.indexOf(target)])
+                    throw new Error("internal error");
             }
         }
         return newBCodes;
@@ -0,0 +1,108 @@
+package ejsc;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/*
+ * Finds calls to functions known statically.
+ *
+ * A global variable that is bound to a function declared in the program
+ * top level and never written again (see FunctionBindingAnalyzer) always
+ * holds that function once declarations are hoisted.  analyze returns the
+ * names of such variables that are called, for which Main makes global
+ * variable slots (see GlobalSlotAnalyzer).  The function object made once
+ * by the declaration is then called through the slot instead of looking
+ * up the variable by name.
+ */
+class DirectCallAnalyzer extends IASTBaseVisitor {
+    HashMap<String, IASTFunctionExpression> known = new HashMap<String, IASTFunctionExpression>();
+    LinkedHashSet<String> called = new LinkedHashSet<String>();
+    LinkedList<HashSet<String>> scopes = new LinkedList<HashSet<String>>();
+
+    LinkedHashSet<String> analyze(IASTProgram program) {
+        FunctionBindingAnalyzer analyzer = new FunctionBindingAnalyzer();
+        analyzer.analyze(program);
+        program.program.body.accept(new DeclarationFinder(analyzer));
+        if (!known.isEmpty())
+            program.program.body.accept(this);
+        return called;
+    }
+
+    // Finds function declarations in the program top level.
+    class DeclarationFinder extends IASTBaseVisitor {
+        FunctionBindingAnalyzer analyzer;
+
+        DeclarationFinder(FunctionBindingAnalyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+
+        @Override
+        public Object visitBlockStatement(IASTBlockStatement node) {
+            for (IASTStatement s : node.stmts) {
+                if (s != null)
+                    s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            FunctionBindingAnalyzer.Variable v = analyzer.getBinding(node);
+            if (v != null && v.isGlobal() && node.isDeclaration)
+                known.put(v.name, node);
+            return null;
+        }
+    }
+
+    boolean isDeclared(String name) {
+        for (HashSet<String> s : scopes) {
+            if (s.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        HashSet<String> declared = new HashSet<String>(node.params);
+        declared.addAll(node.locals);
+        declared.add("arguments");
+        scopes.push(declared);
+        node.body.accept(this);
+        scopes.pop();
+        return null;
+    }
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+        node.body.accept(this);
+        HashSet<String> declared = new HashSet<String>();
+        declared.add(node.param);
+        scopes.push(declared);
+        node.handler.accept(this);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpression(IASTCallExpression node) {
+        if (node.callee instanceof IASTIdentifier) {
+            String name = ((IASTIdentifier) node.callee).id;
+            if (known.containsKey(name) && !isDeclared(name))
+                called.add(name);
+        }
+        return super.visitCallExpression(node);
+    }
+}
@@ -0,0 +1,577 @@
+package ejsc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.RuleStopState;
+import org.antlr.v4.runtime.atn.Transition;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import org.antlr.v4.runtime.misc.Pair;
+
+import ejsc.antlr.ECMAScriptLexer;
+
+/*
+ * Hand-written lexer that produces the same tokens as ECMAScriptLexer,
+ * i.e., the same types, channels, positions and texts, following the
+ * longest match rule of ANTLR lexers.  Characters are classified with a
+ * table instead of running the lexer ATN.
+ *
+ * The Unicode character sets of identifiers (UnicodeLetter etc. in
+ * ECMAScript.g4) are taken from the ATN of ECMAScriptLexer so that the
+ * table never disagrees with the grammar.
+ */
+class ECMAScriptHandLexer implements TokenSource {
+    // character classes
+    static final byte ID_START = 1;
+    static final byte ID_PART = 2;
+    static final byte WHITE_SPACE = 4;
+    static final byte LINE_TERMINATOR = 8;
+    static final byte DIGIT = 16;
+    static final byte HEX_DIGIT = 32;
+    static final byte OCTAL_DIGIT = 64;
+
+    static final byte[] charClass = new byte[Character.MAX_VALUE + 1];
+    static final HashMap<String, Integer> keywords = new HashMap<String, Integer>();
+    static final HashSet<Integer> strictModeKeywords = new HashSet<Integer>();
+    static final int MAX_KEYWORD_LENGTH = 10;  // "instanceof", "implements"
+
+    static {
+        for (int c : ruleCharSet("UnicodeLetter").toList())
+            charClass[c] |= ID_START | ID_PART;
+        for (String rule : new String[] {"UnicodeCombiningMark", "UnicodeDigit", "UnicodeConnectorPunctuation"})
+            for (int c : ruleCharSet(rule).toList())
+                charClass[c] |= ID_PART;
+        charClass['$'] |= ID_START | ID_PART;
+        charClass['_'] |= ID_START | ID_PART;
+        charClass[0x200C] |= ID_PART;  // ZWNJ
+        charClass[0x200D] |= ID_PART;  // ZWJ
+        for (int c : new int[] {'\t', 0x0B, 0x0C, ' ', 0xA0})
+            charClass[c] |= WHITE_SPACE;
+        for (int c : new int[] {'\r', '\n', 0x2028, 0x2029})
+            charClass[c] |= LINE_TERMINATOR;
+        for (char c = '0'; c <= '9'; c++)
+            charClass[c] |= DIGIT | HEX_DIGIT;
+        for (char c = '0'; c <= '7'; c++)
+            charClass[c] |= OCTAL_DIGIT;
+        for (char c = 'a'; c <= 'f'; c++) {
+            charClass[c] |= HEX_DIGIT;
+            charClass[Character.toUpperCase(c)] |= HEX_DIGIT;
+        }
+
+        // Keywords are the token types whose literal is a word.  Token
+        // types are numbered in the order of the rules, so the first one
+        // wins as in ANTLR.
+        for (int type = 1; type <= ECMAScriptLexer.VOCABULARY.getMaxTokenType(); type++) {
+            String literal = ECMAScriptLexer.VOCABULARY.getLiteralName(type);
+            if (literal != null && literal.matches("'[a-z]+'")) {
+                String word = literal.substring(1, literal.length() - 1);
+                if (!keywords.containsKey(word))
+                    keywords.put(word, type);
+            }
+        }
+        keywords.put("true", ECMAScriptLexer.BooleanLiteral);
+        keywords.put("false", ECMAScriptLexer.BooleanLiteral);
+        // Rules with a predicate have no literal name.
+        int[] strict = {
+            ECMAScriptLexer.Implements, ECMAScriptLexer.Let, ECMAScriptLexer.Private,
+            ECMAScriptLexer.Public, ECMAScriptLexer.Interface, ECMAScriptLexer.Package,
+            ECMAScriptLexer.Protected, ECMAScriptLexer.Static, ECMAScriptLexer.Yield
+        };
+        for (int type : strict) {
+            keywords.put(ECMAScriptLexer.VOCABULARY.getSymbolicName(type).toLowerCase(), type);
+            strictModeKeywords.add(type);
+        }
+    }
+
+    // Characters matched by a fragment rule consisting of character sets.
+    static IntervalSet ruleCharSet(String ruleName) {
+        int ruleIndex = Arrays.asList(ECMAScriptLexer.ruleNames).indexOf(ruleName);
+        if (ruleIndex < 0)
+            throw new Error("no lexer rule: " + ruleName);
+        IntervalSet set = new IntervalSet();
+        HashSet<ATNState> visited = new HashSet<ATNState>();
+        collectCharSet(ECMAScriptLexer._ATN.ruleToStartState[ruleIndex], set, visited);
+        return set;
+    }
+
+    static void collectCharSet(ATNState s, IntervalSet set, HashSet<ATNState> visited) {
+        if (s instanceof RuleStopState || !visited.add(s))
+            return;
+        for (int i = 0; i < s.getNumberOfTransitions(); i++) {
+            Transition t = s.transition(i);
+            if (t.isEpsilon())
+                collectCharSet(t.target, set, visited);
+            else
+                set.addAll(t.label());
+        }
+    }
+
+    CharStream input;
+    Pair<TokenSource, CharStream> sourcePair;
+    TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+    boolean strictMode = true;
+    int line = 1;
+    int charPositionInLine = 0;
+    int lastTokenType = Token.INVALID_TYPE;  // on the default channel
+
+    ECMAScriptHandLexer(CharStream input) {
+        this.input = input;
+        this.sourcePair = new Pair<TokenSource, CharStream>(this, input);
+    }
+
+    void setStrictMode(boolean strictMode) {
+        this.strictMode = strictMode;
+    }
+
+    @Override
+    public Token nextToken() {
+        int start = input.index();
+        int tokenLine = line;
+        int tokenCharPositionInLine = charPositionInLine;
+        int c = ch(1);
+        if (c == CharStream.EOF) {
+            lastTokenType = Token.EOF;
+            return factory.create(sourcePair, Token.EOF, null, Token.DEFAULT_CHANNEL,
+                    start, start - 1, line, charPositionInLine);
+        }
+
+        int type;
+        int length = 1;
+        int channel = Token.DEFAULT_CHANNEL;
+        switch (c) {
+        case '[': type = ECMAScriptLexer.OpenBracket; break;
+        case ']': type = ECMAScriptLexer.CloseBracket; break;
+        case '(': type = ECMAScriptLexer.OpenParen; break;
+        case ')': type = ECMAScriptLexer.CloseParen; break;
+        case '{': type = ECMAScriptLexer.OpenBrace; break;
+        case '}': type = ECMAScriptLexer.CloseBrace; break;
+        case ';': type = ECMAScriptLexer.SemiColon; break;
+        case ',': type = ECMAScriptLexer.Comma; break;
+        case '?': type = ECMAScriptLexer.QuestionMark; break;
+        case ':': type = ECMAScriptLexer.Colon; break;
+        case '~': type = ECMAScriptLexer.BitNot; break;
+        case '.':
+            length = scanNumber();
+            if (length > 0)
+                type = ECMAScriptLexer.DecimalLiteral;
+            else {
+                length = 1;
+                type = ECMAScriptLexer.Dot;
+            }
+            break;
+        case '=':
+            if (ch(2) != '=')
+                type = ECMAScriptLexer.Assign;
+            else if (ch(3) != '=') {
+                type = ECMAScriptLexer.Equals;
+                length = 2;
+            } else {
+                type = ECMAScriptLexer.IdentityEquals;
+                length = 3;
+            }
+            break;
+        case '!':
+            if (ch(2) != '=')
+                type = ECMAScriptLexer.Not;
+            else if (ch(3) != '=') {
+                type = ECMAScriptLexer.NotEquals;
+                length = 2;
+            } else {
+                type = ECMAScriptLexer.IdentityNotEquals;
+                length = 3;
+            }
+            break;
+        case '+':
+            if (ch(2) == '+') {
+                type = ECMAScriptLexer.PlusPlus;
+                length = 2;
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.PlusAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.Plus;
+            break;
+        case '-':
+            if (ch(2) == '-') {
+                type = ECMAScriptLexer.MinusMinus;
+                length = 2;
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.MinusAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.Minus;
+            break;
+        case '*':
+            if (ch(2) == '=') {
+                type = ECMAScriptLexer.MultiplyAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.Multiply;
+            break;
+        case '%':
+            if (ch(2) == '=') {
+                type = ECMAScriptLexer.ModulusAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.Modulus;
+            break;
+        case '^':
+            if (ch(2) == '=') {
+                type = ECMAScriptLexer.BitXorAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.BitXOr;
+            break;
+        case '&':
+            if (ch(2) == '&') {
+                type = ECMAScriptLexer.And;
+                length = 2;
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.BitAndAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.BitAnd;
+            break;
+        case '|':
+            if (ch(2) == '|') {
+                type = ECMAScriptLexer.Or;
+                length = 2;
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.BitOrAssign;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.BitOr;
+            break;
+        case '<':
+            if (ch(2) == '<') {
+                if (ch(3) == '=') {
+                    type = ECMAScriptLexer.LeftShiftArithmeticAssign;
+                    length = 3;
+                } else {
+                    type = ECMAScriptLexer.LeftShiftArithmetic;
+                    length = 2;
+                }
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.LessThanEquals;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.LessThan;
+            break;
+        case '>':
+            if (ch(2) == '>') {
+                if (ch(3) == '>') {
+                    if (ch(4) == '=') {
+                        type = ECMAScriptLexer.RightShiftLogicalAssign;
+                        length = 4;
+                    } else {
+                        type = ECMAScriptLexer.RightShiftLogical;
+                        length = 3;
+                    }
+                } else if (ch(3) == '=') {
+                    type = ECMAScriptLexer.RightShiftArithmeticAssign;
+                    length = 3;
+                } else {
+                    type = ECMAScriptLexer.RightShiftArithmetic;
+                    length = 2;
+                }
+            } else if (ch(2) == '=') {
+                type = ECMAScriptLexer.GreaterThanEquals;
+                length = 2;
+            } else
+                type = ECMAScriptLexer.MoreThan;
+            break;
+        case '/':
+            if (ch(2) == '*' && (length = scanMultiLineComment()) > 0) {
+                type = ECMAScriptLexer.MultiLineComment;
+                channel = Lexer.HIDDEN;
+            } else if (ch(2) == '/') {
+                length = 2;
+                while (ch(length + 1) != CharStream.EOF && !is(ch(length + 1), LINE_TERMINATOR))
+                    length++;
+                type = ECMAScriptLexer.SingleLineComment;
+                channel = Lexer.HIDDEN;
+            } else if (isRegexPossible() && (length = scanRegularExpression()) > 0)
+                type = ECMAScriptLexer.RegularExpressionLiteral;
+            else if (ch(2) == '=') {
+                type = ECMAScriptLexer.DivideAssign;
+                length = 2;
+            } else {
+                type = ECMAScriptLexer.Divide;
+                length = 1;
+            }
+            break;
+        case '"':
+        case '\'':
+            length = scanString(c);
+            if (length > 0)
+                type = ECMAScriptLexer.StringLiteral;
+            else {
+                type = ECMAScriptLexer.UnexpectedCharacter;
+                length = 1;
+            }
+            break;
+        default:
+            if (is(c, DIGIT)) {
+                length = scanNumber();
+                type = ECMAScriptLexer.DecimalLiteral;
+                if (c == '0' && (ch(2) == 'x' || ch(2) == 'X') && is(ch(3), HEX_DIGIT)) {
+                    length = 3;
+                    while (is(ch(length + 1), HEX_DIGIT))
+                        length++;
+                    type = ECMAScriptLexer.HexIntegerLiteral;
+                } else if (!strictMode && c == '0' && is(ch(2), OCTAL_DIGIT)) {
+                    int octalLength = 2;
+                    while (is(ch(octalLength + 1), OCTAL_DIGIT))
+                        octalLength++;
+                    if (octalLength > length) {
+                        length = octalLength;
+                        type = ECMAScriptLexer.OctalIntegerLiteral;
+                    }
+                }
+            } else if (is(c, WHITE_SPACE)) {
+                while (is(ch(length + 1), WHITE_SPACE))
+                    length++;
+                type = ECMAScriptLexer.WhiteSpaces;
+                channel = Lexer.HIDDEN;
+            } else if (is(c, LINE_TERMINATOR)) {
+                type = ECMAScriptLexer.LineTerminator;
+                channel = Lexer.HIDDEN;
+            } else if ((length = identifierPart(1, ID_START)) > 0) {
+                int n;
+                while ((n = identifierPart(length + 1, ID_PART)) > 0)
+                    length += n;
+                type = ECMAScriptLexer.Identifier;
+                if (length <= MAX_KEYWORD_LENGTH && c != '\\') {
+                    Integer keyword = keywords.get(input.getText(Interval.of(start, start + length - 1)));
+                    if (keyword != null && (strictMode || !strictModeKeywords.contains(keyword)))
+                        type = keyword;
+                }
+            } else {
+                type = ECMAScriptLexer.UnexpectedCharacter;
+                length = 1;
+            }
+        }
+
+        consume(length);
+        if (channel == Token.DEFAULT_CHANNEL)
+            lastTokenType = type;
+        return factory.create(sourcePair, type, null, channel,
+                start, start + length - 1, tokenLine, tokenCharPositionInLine);
+    }
+
+    // i-th character from the current position (1-origin)
+    int ch(int i) {
+        return input.LA(i);
+    }
+
+    static boolean is(int c, byte cls) {
+        return c >= 0 && (charClass[c] & cls) != 0;
+    }
+
+    void consume(int length) {
+        for (int i = 0; i < length; i++) {
+            if (input.LA(1) == '\n') {
+                line++;
+                charPositionInLine = 0;
+            } else
+                charPositionInLine++;
+            input.consume();
+        }
+    }
+
+    // Same as isRegexPossible of ECMAScriptLexer.
+    boolean isRegexPossible() {
+        switch (lastTokenType) {
+        case ECMAScriptLexer.Identifier:
+        case ECMAScriptLexer.NullLiteral:
+        case ECMAScriptLexer.BooleanLiteral:
+        case ECMAScriptLexer.This:
+        case ECMAScriptLexer.CloseBracket:
+        case ECMAScriptLexer.CloseParen:
+        case ECMAScriptLexer.OctalIntegerLiteral:
+        case ECMAScriptLexer.DecimalLiteral:
+        case ECMAScriptLexer.HexIntegerLiteral:
+        case ECMAScriptLexer.StringLiteral:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /*
+     * Scanners.  Each of them returns the length of the longest match
+     * from the current position, or 0 if there is no match.
+     */
+
+    // IdentifierStart or IdentifierPart at the i-th character
+    int identifierPart(int i, byte cls) {
+        int c = ch(i);
+        if (is(c, cls))
+            return 1;
+        if (isUnicodeEscape(i))
+            return 6;
+        return 0;
+    }
+
+    // UnicodeEscapeSequence preceded by a backslash at the i-th character
+    boolean isUnicodeEscape(int i) {
+        return ch(i) == '\\' && ch(i + 1) == 'u' && is(ch(i + 2), HEX_DIGIT) && is(ch(i + 3), HEX_DIGIT) &&
+                is(ch(i + 4), HEX_DIGIT) && is(ch(i + 5), HEX_DIGIT);
+    }
+
+    // DecimalLiteral
+    int scanNumber() {
+        int i = 1;
+        if (ch(1) == '.') {
+            if (!is(ch(2), DIGIT))
+                return 0;
+            i = 2;
+            while (is(ch(i), DIGIT))
+                i++;
+        } else {
+            i = 2;
+            if (ch(1) != '0')
+                while (is(ch(i), DIGIT))
+                    i++;
+            if (ch(i) == '.') {
+                i++;
+                while (is(ch(i), DIGIT))
+                    i++;
+            }
+        }
+        if (ch(i) == 'e' || ch(i) == 'E') {
+            int j = i + 1;
+            if (ch(j) == '+' || ch(j) == '-')
+                j++;
+            if (is(ch(j), DIGIT)) {
+                while (is(ch(j), DIGIT))
+                    j++;
+                i = j;
+            }
+        }
+        return i - 1;
+    }
+
+    // StringLiteral
+    int scanString(int quote) {
+        int i = 2;
+        while (true) {
+            int c = ch(i);
+            if (c == quote)
+                return i;
+            if (c == CharStream.EOF || c == '\r' || c == '\n')
+                return 0;
+            if (c != '\\') {
+                i++;
+                continue;
+            }
+            int d = ch(i + 1);
+            if (d == '\r')
+                i += ch(i + 2) == '\n' ? 3 : 2;  // LineContinuation
+            else if (is(d, LINE_TERMINATOR))
+                i += 2;
+            else if (d == 'x') {
+                if (!is(ch(i + 2), HEX_DIGIT) || !is(ch(i + 3), HEX_DIGIT))
+                    return 0;
+                i += 4;
+            } else if (d == 'u') {
+                if (!isUnicodeEscape(i))
+                    return 0;
+                i += 6;
+            } else if (d == '0')
+                i += 2;
+            else if (is(d, DIGIT) || d == CharStream.EOF)
+                return 0;
+            else
+                i += 2;  // SingleEscapeCharacter or NonEscapeCharacter
+        }
+    }
+
+    // MultiLineComment
+    int scanMultiLineComment() {
+        for (int i = 3; ch(i) != CharStream.EOF; i++)
+            if (ch(i) == '*' && ch(i + 1) == '/')
+                return i + 1;
+        return 0;
+    }
+
+    // RegularExpressionLiteral
+    int scanRegularExpression() {
+        int c = ch(2);
+        if (c == '*' || c == '/')
+            return 0;
+        int i = 2;
+        while (true) {
+            c = ch(i);
+            if (c == '/')
+                break;
+            if (c == CharStream.EOF || is(c, LINE_TERMINATOR))
+                return 0;
+            if (c == '\\') {
+                int d = ch(i + 1);
+                if (d == CharStream.EOF || is(d, LINE_TERMINATOR))
+                    return 0;
+                i += 2;
+            } else if (c == '[') {
+                i++;
+                while ((c = ch(i)) != ']') {
+                    if (c == CharStream.EOF || is(c, LINE_TERMINATOR))
+                        return 0;
+                    if (c == '\\') {
+                        int d = ch(i + 1);
+                        if (d == CharStream.EOF || is(d, LINE_TERMINATOR))
+                            return 0;
+                        i += 2;
+                    } else
+                        i++;
+                }
+                i++;
+            } else
+                i++;
+        }
+        i++;
+        int n;
+        while ((n = identifierPart(i, ID_PART)) > 0)
+            i += n;
+        return i - 1;
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        return charPositionInLine;
+    }
+
+    @Override
+    public CharStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public String getSourceName() {
+        return input.getSourceName();
+    }
+
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+}
@@ -0,0 +1,127 @@
+package ejsc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+
+import ejsc.antlr.ECMAScriptLexer;
+
+/*
+ * Differential check of ECMAScriptHandLexer against ECMAScriptLexer.
+ *
+ *   java -cp compiler.jar ejsc.ECMAScriptHandLexerCheck [-random N] [-seed S] [-bench] file.js ...
+ *
+ * Tokenizes each file with both lexers and reports the first token that
+ * differs in type, channel, position or text.  -random N also checks N
+ * random inputs built from fragments that stress the corner cases of the
+ * grammar (regular expressions vs. division, numbers, escapes, comments).
+ * -bench prints the time taken by each lexer.
+ */
+public class ECMAScriptHandLexerCheck {
+    static final String[] FRAGMENTS = {
+        "a", "x1", "$", "_", "\\u0041", "\\u00", "if", "in", "instanceof", "null", "true", "this",
+        "let", "yield", "\u03b1", "\u01c5", "a\u0301", "\u200c",
+        "0", "1", "09", "0x", "0x1F", "0X", ".", ".5", "1.", "1.5", "e", "E", "e+", "1e5", "1e-", "07",
+        "\"", "'", "\"ab\"", "'c'", "\\", "\\x4", "\\x41", "\\0", "\\1", "\\n", "\\\r\n", "\\\n",
+        "/", "/=", "//", "/*", "*/", "*", "[", "]", "\\/", "g", "i",
+        "(", ")", "{", "}", ";", ",", "?", ":", "~", "!", "=", "==", "+", "-", "<", ">", ">>", "&", "|", "^", "%",
+        " ", "\t", "\u00a0", "\n", "\r", "\r\n", "\u2028", "#", "@", "\ufeff",
+    };
+
+    static int compare(String name, ANTLRInputStream in1, ANTLRInputStream in2) {
+        TokenSource expected = new ECMAScriptLexer(in1);
+        TokenSource actual = new ECMAScriptHandLexer(in2);
+        for (int n = 0; ; n++) {
+            Token t1 = expected.nextToken();
+            Token t2 = actual.nextToken();
+            if (t1.getType() != t2.getType() || t1.getChannel() != t2.getChannel() ||
+                    t1.getStartIndex() != t2.getStartIndex() || t1.getStopIndex() != t2.getStopIndex() ||
+                    t1.getLine() != t2.getLine() || t1.getCharPositionInLine() != t2.getCharPositionInLine() ||
+                    !t1.getText().equals(t2.getText())) {
+                System.out.println(name + ": token " + n + " differs");
+                System.out.println("  ECMAScriptLexer:     " + describe(t1));
+                System.out.println("  ECMAScriptHandLexer: " + describe(t2));
+                return 1;
+            }
+            if (t1.getType() == Token.EOF)
+                return 0;
+        }
+    }
+
+    static String describe(Token t) {
+        return ECMAScriptLexer.VOCABULARY.getDisplayName(t.getType()) + " channel=" + t.getChannel() +
+                " " + t.getStartIndex() + ".." + t.getStopIndex() + " " + t.getLine() + ":" +
+                t.getCharPositionInLine() + " " + escape(t.getText());
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c < 0x20 || c > 0x7e)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append("\"").toString();
+    }
+
+    static long lexAll(TokenSource lexer) {
+        long start = System.nanoTime();
+        while (lexer.nextToken().getType() != Token.EOF)
+            ;
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int random = 0;
+        long seed = 0;
+        boolean bench = false;
+        int failures = 0;
+        int checked = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-random"))
+                random = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seed"))
+                seed = Long.parseLong(args[++i]);
+            else if (args[i].equals("-bench"))
+                bench = true;
+            else {
+                InputStream in = new FileInputStream(args[i]);
+                ANTLRInputStream input;
+                try {
+                    input = new ANTLRInputStream(in);
+                } finally {
+                    in.close();
+                }
+                String text = input.toString();
+                failures += compare(args[i], new ANTLRInputStream(text), new ANTLRInputStream(text));
+                checked++;
+                if (bench) {
+                    long t1 = lexAll(new ECMAScriptLexer(new ANTLRInputStream(text)));
+                    long t2 = lexAll(new ECMAScriptHandLexer(new ANTLRInputStream(text)));
+                    System.out.println(String.format("%s: ECMAScriptLexer %.1f ms, ECMAScriptHandLexer %.1f ms",
+                            args[i], t1 / 1e6, t2 / 1e6));
+                }
+            }
+        }
+        Random rand = new Random(seed);
+        for (int n = 0; n < random; n++) {
+            StringBuilder sb = new StringBuilder();
+            int len = rand.nextInt(30);
+            for (int i = 0; i < len; i++)
+                sb.append(FRAGMENTS[rand.nextInt(FRAGMENTS.length)]);
+            String text = sb.toString();
+            failures += compare("random " + n + " " + escape(text),
+                    new ANTLRInputStream(text), new ANTLRInputStream(text));
+            checked++;
+        }
+        System.out.println(checked + " inputs checked, " + failures + " differ");
+        if (failures > 0)
+            System.exit(1);
+    }
+}
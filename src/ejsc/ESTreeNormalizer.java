@@ -20,6 +20,7 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -29,127 +30,114 @@ import ejsc.ast_node.Node.*;
 public class ESTreeNormalizer {
     
     public void normalize(Node estree) {
-        new HoistingFuncDecl().run((INode) estree);
-        new EliminatingNamedFunc().run((INode) estree);
+        new Normalizer().run((INode) estree);
     }
 
-    class HoistingFuncDecl extends ESTreeBaseVisitor<Object> {
+    /*
+     * Hoists function declarations to the top of the enclosing function
+     * (or catch clause) and eliminates the names of function expressions
+     * in a single traversal.  A body is reallocated only if it contains
+     * function declarations.
+     *
+     * Names of function expressions in function declarations are not
+     * eliminated.
+     */
+    class Normalizer extends ESTreeBaseVisitor<Object> {
         
-        List<FunctionDeclaration> funcDecls = null;
+        List<FunctionDeclaration> funcDecls = null;  // null if none found yet
+        boolean inFunctionDeclaration = false;
         
         public void run(INode estree) {
             visit(estree);
         }
         
-        protected Object visitProgram(Program node) {
-            funcDecls = new LinkedList<FunctionDeclaration>();
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getBody()) {
+        // Visits stmts and moves the function declarations in it to
+        // funcDecls.  Returns the rest of stmts, or stmts itself if it
+        // has no function declarations.
+        List<IStatement> hoist(List<IStatement> stmts) {
+            List<IStatement> rest = null;
+            int i = 0;
+            for (IStatement stmt : stmts) {
                 if (stmt instanceof FunctionDeclaration) {
+                    if (rest == null)
+                        rest = new ArrayList<IStatement>(stmts.subList(0, i));
+                    if (funcDecls == null)
+                        funcDecls = new ArrayList<FunctionDeclaration>();
                     funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
+                } else if (rest != null) {
+                    rest.add(stmt);
                 }
+                i++;
                 visit(stmt);
             }
-            List<IStatement> body = new LinkedList<IStatement>();
-            body.addAll(funcDecls);
-            body.addAll(stmts);
-            node.setBody(body);
-            return null;
+            return rest == null ? stmts : rest;
         }
         
-        protected Object visitFunctionDeclaration(FunctionDeclaration node) {
+        // Returns the body of a function (or catch clause) with its function
+        // declarations hoisted.
+        List<IStatement> hoistFunctionBody(List<IStatement> stmts) {
             List<FunctionDeclaration> tmp = funcDecls;
-            funcDecls = new LinkedList<FunctionDeclaration>();
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getBody().getBody()) {
-                if (stmt instanceof FunctionDeclaration) {
-                    funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
-                }
-                visit(stmt);
+            funcDecls = null;
+            List<IStatement> rest = hoist(stmts);
+            List<IStatement> body = rest;
+            if (funcDecls != null) {
+                body = new ArrayList<IStatement>(funcDecls.size() + rest.size());
+                body.addAll(funcDecls);
+                body.addAll(rest);
             }
-            List<IStatement> body = new LinkedList<IStatement>();
-            body.addAll(funcDecls);
-            body.addAll(stmts);
-            node.getBody().setBody(body);
             funcDecls = tmp;
+            return body;
+        }
+        
+        protected Object visitProgram(Program node) {
+            List<IStatement> body = hoistFunctionBody(node.getBody());
+            if (body != node.getBody())
+                node.setBody(body);
+            return null;
+        }
+        
+        protected Object visitFunctionDeclaration(FunctionDeclaration node) {
+            boolean tmp = inFunctionDeclaration;
+            inFunctionDeclaration = true;
+            List<IStatement> body = hoistFunctionBody(node.getBody().getBody());
+            if (body != node.getBody().getBody())
+                node.getBody().setBody(body);
+            inFunctionDeclaration = tmp;
             return null;
         }
         
         @Override
         protected Object visitFunctionExpression(FunctionExpression node) {
-            List<FunctionDeclaration> tmp = funcDecls;
-            funcDecls = new LinkedList<FunctionDeclaration>();
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getBody().getBody()) {
-                if (stmt instanceof FunctionDeclaration) {
-                    funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
-                }
-                visit(stmt);
-            }
-            List<IStatement> body = new LinkedList<IStatement>();
-            body.addAll(funcDecls);
-            body.addAll(stmts);
-            node.getBody().setBody(body);
-            funcDecls = tmp;
+            List<IStatement> body = hoistFunctionBody(node.getBody().getBody());
+            if (body != node.getBody().getBody())
+                node.getBody().setBody(body);
+            if (node.getId() != null && !inFunctionDeclaration)
+                eliminateName(node);
             return null;
         }
         
         protected Object visitCatchClause(CatchClause node) {
-            List<FunctionDeclaration> tmp = funcDecls;
-            funcDecls = new LinkedList<FunctionDeclaration>();
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getBody().getBody()) {
-                if (stmt instanceof FunctionDeclaration) {
-                    funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
-                }
-                visit(stmt);
-            }
-            List<IStatement> body = new LinkedList<IStatement>();
-            body.addAll(funcDecls);
-            body.addAll(stmts);
-            node.getBody().setBody(body);
-            funcDecls = tmp;
+            List<IStatement> body = hoistFunctionBody(node.getBody().getBody());
+            if (body != node.getBody().getBody())
+                node.getBody().setBody(body);
             return null;
         }
         
         protected Object visitBlockStatement(BlockStatement node) {
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getBody()) {
-                if (stmt instanceof FunctionDeclaration) {
-                    funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
-                }
-                visit(stmt);
-            }
-            node.setBody(stmts);
+            List<IStatement> body = hoist(node.getBody());
+            if (body != node.getBody())
+                node.setBody(body);
             return null;
         }
         
         protected Object visitSwitchCase(SwitchCase node) {
-            List<IStatement> stmts = new LinkedList<IStatement>();
-            for (IStatement stmt : node.getConsequent()) {
-                if (stmt instanceof FunctionDeclaration) {
-                    funcDecls.add((FunctionDeclaration) stmt);
-                } else {
-                    stmts.add(stmt);
-                }
-                visit(stmt);
-            }
-            node.setConsequent(stmts);
+            if (node.getTest() != null)
+                visit(node.getTest());
+            List<IStatement> consequent = hoist(node.getConsequent());
+            if (consequent != node.getConsequent())
+                node.setConsequent(consequent);
             return null;
         }
-    }
-
-    class EliminatingNamedFunc extends ESTreeBaseVisitor<Object> {
         
         /*
          * For example...
@@ -167,36 +155,27 @@ public class ESTreeNormalizer {
          * }
          * 
          */
-        
-        public void run(INode estree) {
-            visit(estree);
-        }
-        
-        protected Object visitFunctionExpression(FunctionExpression node) {
-            super.visitFunctionExpression(node);
-            if (node.getId() != null) {
-                List<IStatement> outerFuncBody = new LinkedList<IStatement>();
-                
-                // create inner func
-                FunctionExpression inner = new FunctionExpression(null, node.getParams(), node.getBody());
-                
-                // create var decl
-                List<IVariableDeclarator> varDecl = new LinkedList<IVariableDeclarator>();
-                varDecl.add(new VariableDeclarator(node.getId(), inner));
-                outerFuncBody.add(new VariableDeclaration(varDecl));
-                
-                // create call exp
-                List<IExpression> args = new LinkedList<IExpression>();
-                for (IPattern ptn : node.getParams()) {
-                    args.add(new Identifier(((Identifier) ptn).getName()));
-                }
-                CallExpression callExp = new CallExpression(node.getId(), args);
-                outerFuncBody.add(new ExpressionStatement(callExp));
-                
-                node.setId(null);
-                node.setBody(new BlockStatement(outerFuncBody));
+        void eliminateName(FunctionExpression node) {
+            List<IStatement> outerFuncBody = new LinkedList<IStatement>();
+            
+            // create inner func
+            FunctionExpression inner = new FunctionExpression(null, node.getParams(), node.getBody());
+            
+            // create var decl
+            List<IVariableDeclarator> varDecl = new LinkedList<IVariableDeclarator>();
+            varDecl.add(new VariableDeclarator(node.getId(), inner));
+            outerFuncBody.add(new VariableDeclaration(varDecl));
+            
+            // create call exp
+            List<IExpression> args = new LinkedList<IExpression>();
+            for (IPattern ptn : node.getParams()) {
+                args.add(new Identifier(((Identifier) ptn).getName()));
             }
-            return null;
+            CallExpression callExp = new CallExpression(node.getId(), args);
+            outerFuncBody.add(new ExpressionStatement(callExp));
+            
+            node.setId(null);
+            node.setBody(new BlockStatement(outerFuncBody));
         }
     }
 
@@ -0,0 +1,171 @@
+package ejsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Finds variables that are bound to a function expression once and never
+ * written again.
+ *
+ * Counts writes to every variable of the program: parameters, assignments
+ * including compound ones, ++, --, delete, for-in and catch.  A variable
+ * written exactly once, by "x = function ...", which is what IASTGenerator
+ * makes of a FunctionDeclaration, holds that function from then on.  The
+ * assignment has to be in the scope of the variable (the program top
+ * level for a global one).  In an inner function, it may run many times
+ * and assign a different closure each time.  Global variables are
+ * assumed not to be written outside of the program, e.g., through the
+ * global object.
+ */
+class FunctionBindingAnalyzer extends IASTBaseVisitor {
+    static class Variable {
+        String name;
+        IASTFunctionExpression scope;  // null for global variables
+        int writes;
+        IASTFunctionExpression value;  // function assigned to this variable
+
+        Variable(String name, IASTFunctionExpression scope) {
+            this.name = name;
+            this.scope = scope;
+        }
+
+        boolean isGlobal() {
+            return scope == null;
+        }
+    }
+
+    static class Scope {
+        Scope outer;
+        IASTFunctionExpression func;
+        HashMap<String, Variable> vars = new HashMap<String, Variable>();
+
+        Scope(Scope outer, IASTFunctionExpression func) {
+            this.outer = outer;
+            this.func = func;
+        }
+    }
+
+    Scope scope;
+    HashMap<String, Variable> globals = new HashMap<String, Variable>();
+    ArrayList<Variable> variables = new ArrayList<Variable>();
+    HashMap<IASTFunctionExpression, Variable> boundFunctions = new HashMap<IASTFunctionExpression, Variable>();
+
+    void analyze(IASTProgram node) {
+        node.accept(this);
+        for (Variable v : variables) {
+            if (v.writes == 1 && v.value != null)
+                boundFunctions.put(v.value, v);
+        }
+    }
+
+    // Returns the variable that always holds func, or null.
+    Variable getBinding(IASTFunctionExpression func) {
+        return boundFunctions.get(func);
+    }
+
+    Variable declare(String name) {
+        Variable v = scope.vars.get(name);
+        if (v == null) {
+            v = new Variable(name, scope.func);
+            scope.vars.put(name, v);
+            variables.add(v);
+        }
+        return v;
+    }
+
+    Variable resolve(String name) {
+        for (Scope s = scope; s != null; s = s.outer) {
+            Variable v = s.vars.get(name);
+            if (v != null)
+                return v;
+        }
+        Variable v = globals.get(name);
+        if (v == null) {
+            v = new Variable(name, null);
+            globals.put(name, v);
+            variables.add(v);
+        }
+        return v;
+    }
+
+    void write(IASTExpression node) {
+        if (node instanceof IASTIdentifier)
+            resolve(((IASTIdentifier) node).id).writes++;
+    }
+
+    // The program is not a function.  Its variables are global.
+    @Override
+    public Object visitProgram(IASTProgram node) {
+        node.program.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        scope = new Scope(scope, node);
+        declare("arguments").writes++;
+        for (String param : node.params)
+            declare(param).writes++;
+        for (String local : node.locals)
+            declare(local);
+        node.body.accept(this);
+        scope = scope.outer;
+        return null;
+    }
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+        resolve(node.param).writes++;
+        return super.visitTryCatchStatement(node);
+    }
+
+    @Override
+    public Object visitForInStatement(IASTForInStatement node) {
+        resolve(node.var).writes++;
+        return super.visitForInStatement(node);
+    }
+
+    @Override
+    public Object visitUnaryExpression(IASTUnaryExpression node) {
+        switch (node.operator) {
+        case INC: case DEC: case DELETE:
+            write(node.operands[0]);
+            break;
+        default:
+            break;
+        }
+        return super.visitUnaryExpression(node);
+    }
+
+    @Override
+    public Object visitBinaryExpression(IASTBinaryExpression node) {
+        switch (node.operator) {
+        case ASSIGN:
+            if (node.operands[0] instanceof IASTIdentifier && node.operands[1] instanceof IASTFunctionExpression) {
+                Variable v = resolve(((IASTIdentifier) node.operands[0]).id);
+                if (v.scope == (scope == null ? null : scope.func))
+                    v.value = (IASTFunctionExpression) node.operands[1];
+            }
+            write(node.operands[0]);
+            break;
+        case ASSIGN_ADD: case ASSIGN_SUB: case ASSIGN_MUL: case ASSIGN_DIV: case ASSIGN_MOD:
+        case ASSIGN_SHL: case ASSIGN_SHR: case ASSIGN_UNSIGNED_SHR:
+        case ASSIGN_BAND: case ASSIGN_BOR: case ASSIGN_BXOR:
+            write(node.operands[0]);
+            break;
+        default:
+            break;
+        }
+        return super.visitBinaryExpression(node);
+    }
+}
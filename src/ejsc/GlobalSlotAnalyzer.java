@@ -0,0 +1,70 @@
+package ejsc;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/*
+ * Numbers global variables of the whole program.
+ *
+ * Global variables written by the program are given slot numbers, in the
+ * order they appear, so that CodeGenerator accesses them by index rather
+ * than by name.  The name table is output with the code, from which the
+ * VM binds the slots to the properties of the global object.
+ *
+ * Names that may be accessed reflectively remain accessed by name: those
+ * that also appear as a string literal or a property name, e.g., this.x
+ * or o["x"], and all names if the program uses eval or with.  Globals only
+ * read by the program, such as builtins, are also accessed by name.
+ * Slots can be limited to some names, e.g., those of functions called
+ * directly (see DirectCallAnalyzer).
+ */
+class GlobalSlotAnalyzer extends IASTBaseVisitor {
+    HashSet<String> reflectiveNames = new HashSet<String>();
+    boolean dynamic = false;
+
+    // names is null to give slots to all global variables
+    LinkedHashMap<String, Integer> analyze(IASTProgram program, Set<String> names) {
+        LinkedHashMap<String, Integer> slots = new LinkedHashMap<String, Integer>();
+        program.accept(this);
+        if (dynamic)
+            return slots;
+        FunctionBindingAnalyzer analyzer = new FunctionBindingAnalyzer();
+        analyzer.analyze(program);
+        for (FunctionBindingAnalyzer.Variable v : analyzer.variables) {
+            if (v.isGlobal() && v.writes > 0 && v.name != null && !reflectiveNames.contains(v.name) &&
+                    (names == null || names.contains(v.name)))
+                slots.put(v.name, slots.size());
+        }
+        return slots;
+    }
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitStringLiteral(IASTStringLiteral node) {
+        reflectiveNames.add(node.value);
+        return null;
+    }
+
+    @Override
+    public Object visitWithStatement(IASTWithStatement node) {
+        dynamic = true;
+        return super.visitWithStatement(node);
+    }
+
+    @Override
+    public Object visitIdentifier(IASTIdentifier node) {
+        if ("eval".equals(node.id))
+            dynamic = true;
+        return null;
+    }
+}
@@ -48,6 +48,9 @@ public class IASTBaseVisitor {
 	public Object visitNullLiteral(IASTNullLiteral node) {
 		return visitLiteral(node);
 	}
+	public Object visitUndefinedLiteral(IASTUndefinedLiteral node) {
+		return visitLiteral(node);
+	}
 	public Object visitStatement(IASTStatement node) {
 		return visitNode(node);
 	}
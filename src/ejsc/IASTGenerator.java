@@ -22,6 +22,8 @@
 
 package ejsc;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import ejsc.ast_node.*;
@@ -31,6 +33,19 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 
 	public IASTGenerator() {};
 
+	// Symbol table.  Names of variables are interned so that all
+	// occurrences of a name share one String.
+	HashMap<String, String> symbols = new HashMap<String, String>();
+
+	String intern(String name) {
+		String sym = symbols.get(name);
+		if (sym == null) {
+			symbols.put(name, name);
+			sym = name;
+		}
+		return sym;
+	}
+
 	public IASTProgram gen(Node estree) {
 		return (IASTProgram) visitProgram((Program) estree);
 	}
@@ -40,20 +55,7 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 	    List<String> lexicalIds = new ArrayList<String>();
 	    hoistDeclarations_(declIds, lexicalIds, nd);
 	    // delete duplicate string
-	    List<String> uniqDeclIds = new ArrayList<String>();
-	    for (String s : declIds) {
-	        boolean isUniq = true;
-	        for (String t : uniqDeclIds) {
-	            if (s.equals(t)) {
-	                isUniq = false;
-	                break;
-	            }
-	        }
-	        if (isUniq) {
-	            uniqDeclIds.add(s);
-	        }
-	    }
-	    return uniqDeclIds;
+	    return new ArrayList<String>(new LinkedHashSet<String>(declIds));
 	}
 
 	void hoistDeclarations_(List<String> declIds, List<String> lexicalIds, IStatement nd) {
@@ -62,12 +64,12 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
         case Node.FUNC_DECLARATION: {
             FunctionDeclaration fn = (FunctionDeclaration) nd;
             // localNames.add(fn.getId().getName());
-            declIds.add(fn.getId().getName());
+            declIds.add(intern(fn.getId().getName()));
         } break;
         case Node.VAR_DECLARATION: {
             for (IVariableDeclarator vd : ((VariableDeclaration) nd).getDeclarations()) {
                 // localNames.add(((IIdentifier) vd.getId()).getName());
-                declIds.add(((Identifier) vd.getId()).getName());
+                declIds.add(intern(((Identifier) vd.getId()).getName()));
             }
         } break;
         case Node.BLOCK_STMT: {
@@ -154,7 +156,7 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 	}
 
 	public IASTNode visitIdentifier(Identifier node) {
-		return new IASTIdentifier(node.getName());
+		return new IASTIdentifier(intern(node.getName()));
 	}
 	protected IASTNode visitLiteral(Literal node) {
 		switch (node.getLiteralType()) {
@@ -336,12 +338,12 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 	    IASTExpression obj = null;
 	    IASTStatement body = null;
 		if (node.getPatternLeft() != null) {
-		    v = ((IIdentifier) node.getPatternLeft()).getName();
+		    v = intern(((IIdentifier) node.getPatternLeft()).getName());
 			// v = ((IIdentifier) node.getValDeclLeft()).getName();
 		} else if (node.getValDeclLeft() != null) {
 		    List<IVariableDeclarator> varDecls = node.getValDeclLeft().getDeclarations();
 		    if (varDecls.size() == 1) {
-		        v = ((IIdentifier) varDecls.get(0).getId()).getName();
+		        v = intern(((IIdentifier) varDecls.get(0).getId()).getName());
 		    } else {
 		        // what behavior???
 		    }
@@ -357,11 +359,12 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 		IASTIdentifier id = (IASTIdentifier) node.getId().accept(this);
 		List<String> params = new ArrayList<String>();
 		for (IPattern param : node.getParams()) {
-			params.add(((IIdentifier) param).getName());
+			params.add(intern(((IIdentifier) param).getName()));
 		}
 		List<String> locals = hoistDeclarations(node.getBody());
 		IASTStatement body = (IASTStatement) node.getBody().accept(this);
 		IASTFunctionExpression func = new IASTFunctionExpression(params, locals, body);
+		func.isDeclaration = true;
 		IASTBinaryExpression assign = new IASTBinaryExpression(
 				IASTBinaryExpression.Operator.ASSIGN, id, func);
 		return new IASTExpressionStatement(assign);
@@ -426,7 +429,7 @@ public class IASTGenerator extends ESTreeBaseVisitor<IASTNode> {
 	protected IASTNode visitFunctionExpression(FunctionExpression node) {
 		List<String> params = new ArrayList<String>();
 		for (IPattern param : node.getParams()) {
-			params.add(((IIdentifier) param).getName());
+			params.add(intern(((IIdentifier) param).getName()));
 		}
 		List<String> locals = hoistDeclarations(node.getBody());
 		IASTBlockStatement body = (IASTBlockStatement) node.getBody().accept(this);
@@ -21,6 +21,7 @@
 */
 
 package ejsc;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -109,6 +110,16 @@ class IASTNullLiteral extends IASTLiteral {
 	}
 }
 
+// not in the source program; made by iAST transformations
+class IASTUndefinedLiteral extends IASTLiteral {
+	IASTUndefinedLiteral() {
+	}
+	@Override
+	Object accept(IASTBaseVisitor visitor) {
+		return visitor.visitUndefinedLiteral(this);
+	}
+}
+
 class IASTStatement extends IASTNode {
 	IASTStatement() {
 	}
@@ -292,6 +303,7 @@ class IASTDoWhileStatement extends IASTStatement {
 
 class IASTForInStatement extends IASTStatement {
 	String var;
+	ScopeAnalyzer.Binding varBinding;
 	IASTExpression object;
 	IASTStatement body;
 	String label;
@@ -382,9 +394,15 @@ class IASTFunctionExpression extends IASTExpression {
 	List<String> params;
 	List<String> locals;
 	HashSet<String> innerUsedLocals;
+	// set by ScopeAnalyzer
+	List<String> frameLocals;
+	List<String> argumentsVars;
+	List<String> regLocals;
 	IASTStatement body;
 	public boolean needArguments;
 	public boolean needFrame;
+	boolean isDeclaration;   // made from a FunctionDeclaration
+	HashMap<String, IASTLiteral> constantParams;  // see ConstantParameterAnalyzer
 	IASTFunctionExpression(List<String> params, List<String> locals, IASTStatement body) {
 		this.params = params;
 		this.locals = locals;
@@ -475,6 +493,7 @@ class IASTTernaryExpression extends IASTOperatorExpression {
 class IASTCallExpression extends IASTExpression {
 	IASTExpression callee;
 	List<IASTExpression> arguments;
+	boolean isTail;  // set by TailCallAnalyzer
 	IASTCallExpression(IASTExpression callee, List<IASTExpression> arguments) {
 		this.callee = callee;
 		this.arguments = arguments;
@@ -513,6 +532,7 @@ class IASTMemberExpression extends IASTExpression {
 
 class IASTIdentifier extends IASTExpression {
 	String id;
+	ScopeAnalyzer.Binding binding;  // set by ScopeAnalyzer
 	IASTIdentifier(String id) {
 		this.id = id;
 	}
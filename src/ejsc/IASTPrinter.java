@@ -100,6 +100,10 @@ public class IASTPrinter extends IASTBaseVisitor {
 		JsonObjectBuilder jb = Json.createObjectBuilder().add(KEY_NAME, "NullLiteral");
 		return jb.build();
 	}
+	public Object visitUndefinedLiteral(IASTUndefinedLiteral node) {
+		JsonObjectBuilder jb = Json.createObjectBuilder().add(KEY_NAME, "UndefinedLiteral");
+		return jb.build();
+	}
 	public Object visitStatement(IASTStatement node) {
 		return Json.createObjectBuilder().add(KEY_NAME, "Statement").build();
 	}
@@ -0,0 +1,477 @@
+package ejsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Inlines calls to small functions.
+ *
+ * A function can be inlined if it is declared by a function declaration
+ * at the top level and bound to a global variable that is never written
+ * again (see FunctionBindingAnalyzer), and its body is a sequence of
+ * expression statements optionally followed by a return statement, whose
+ * size in iAST nodes is within the budget.  It must not use this or arguments nor
+ * have inner functions, and NewargsAnalyzer must have found it needs
+ * neither the arguments object nor a frame.
+ *
+ * A call "f(a1, ..., an)" in another function is replaced with the
+ * sequence expression
+ *   (p1' = a1, ..., pn' = an, l1' = undefined, ..., e1', ..., e')
+ * where p', l' and e' are the parameters, locals and expressions of the
+ * body with the variables renamed to fresh locals of the caller.  The new
+ * locals are not used by inner functions, so they are allocated in
+ * registers.  Calls in the program top level and calls where a global
+ * variable used by the body is shadowed are left as they are.  Inlined
+ * code is not inlined further.
+ */
+class Inliner {
+    static final int DEFAULT_BUDGET = 20;
+    // Not a JavaScript identifier, so that renamed variables do not clash.
+    static final String PREFIX = "%inl";
+
+    static class Candidate {
+        IASTFunctionExpression func;
+        List<String> params;
+        List<String> locals;
+        List<IASTExpression> exps = new ArrayList<IASTExpression>();  // body
+        HashSet<String> freeNames = new HashSet<String>();
+    }
+
+    int budget;
+    HashMap<String, Candidate> candidates = new HashMap<String, Candidate>();
+    int nInlined = 0;
+
+    Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    void inline(IASTProgram program) {
+        FunctionBindingAnalyzer analyzer = new FunctionBindingAnalyzer();
+        analyzer.analyze(program);
+        new CandidateFinder(analyzer).find(program.program.body);
+        if (candidates.isEmpty())
+            return;
+        program.program.body.accept(new CallSiteRewriter());
+    }
+
+    // Counts iAST nodes.
+    static class SizeCounter extends IASTBaseVisitor {
+        int size = 0;
+
+        @Override
+        public Object visitNode(IASTNode node) {
+            size++;
+            return null;
+        }
+    }
+
+    // Finds functions that can be inlined among those defined in the
+    // program top level, not in functions.
+    class CandidateFinder extends IASTBaseVisitor {
+        FunctionBindingAnalyzer analyzer;
+
+        CandidateFinder(FunctionBindingAnalyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+
+        void find(IASTStatement body) {
+            body.accept(this);
+        }
+
+        @Override
+        public Object visitBlockStatement(IASTBlockStatement node) {
+            for (IASTStatement s : node.stmts) {
+                if (s != null)
+                    s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            FunctionBindingAnalyzer.Variable v = analyzer.getBinding(node);
+            // Only a declaration is hoisted so that the function is
+            // bound before any call; "var f = function ..." is not.
+            if (v != null && v.isGlobal() && node.isDeclaration) {
+                Candidate c = examine(node);
+                if (c != null)
+                    candidates.put(v.name, c);
+            }
+            return null;
+        }
+
+        Candidate examine(IASTFunctionExpression func) {
+            if (func.needArguments || func.needFrame)
+                return null;
+            SizeCounter counter = new SizeCounter();
+            func.body.accept(counter);
+            if (counter.size > budget)
+                return null;
+            if (!(func.body instanceof IASTBlockStatement))
+                return null;
+            Candidate c = new Candidate();
+            c.func = func;
+            c.params = new ArrayList<String>(func.params);
+            c.locals = new ArrayList<String>(func.locals);
+            List<IASTStatement> stmts = ((IASTBlockStatement) func.body).stmts;
+            for (int i = 0; i < stmts.size(); i++) {
+                IASTStatement s = stmts.get(i);
+                if (s instanceof IASTExpressionStatement)
+                    c.exps.add(((IASTExpressionStatement) s).exp);
+                else if (s instanceof IASTReturnStatement && i == stmts.size() - 1) {
+                    IASTExpression value = ((IASTReturnStatement) s).value;
+                    c.exps.add(value == null ? new IASTUndefinedLiteral() : value);
+                    return checkExpressions(c);
+                } else if (!(s instanceof IASTEmptyStatement))
+                    return null;
+            }
+            c.exps.add(new IASTUndefinedLiteral());
+            return checkExpressions(c);
+        }
+
+        Candidate checkExpressions(Candidate c) {
+            TailRecursionElimination.UsageCollector usage = new TailRecursionElimination.UsageCollector();
+            for (IASTExpression e : c.exps)
+                e.accept(usage);
+            HasFunction hasFunction = new HasFunction();
+            for (IASTExpression e : c.exps)
+                e.accept(hasFunction);
+            if (usage.usesThis || usage.used.contains("arguments") || hasFunction.found)
+                return null;
+            // Keep the original, as the body itself may be rewritten.
+            Copier copier = new Copier(new HashMap<String, String>());
+            for (int i = 0; i < c.exps.size(); i++)
+                c.exps.set(i, copier.copy(c.exps.get(i)));
+            for (String name : usage.used) {
+                if (!c.params.contains(name) && !c.locals.contains(name))
+                    c.freeNames.add(name);
+            }
+            return c;
+        }
+    }
+
+    static class HasFunction extends IASTBaseVisitor {
+        boolean found = false;
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            found = true;
+            return null;
+        }
+    }
+
+    // Replaces calls to the candidates with their bodies.
+    class CallSiteRewriter extends IASTBaseVisitor {
+        IASTFunctionExpression caller;
+        LinkedList<HashSet<String>> scopes = new LinkedList<HashSet<String>>();
+
+        boolean isDeclared(String name) {
+            for (HashSet<String> s : scopes) {
+                if (s.contains(name))
+                    return true;
+            }
+            return false;
+        }
+
+        IASTExpression rewrite(IASTExpression e) {
+            if (e == null)
+                return null;
+            e.accept(this);
+            if (caller == null || !(e instanceof IASTCallExpression))
+                return e;
+            IASTCallExpression call = (IASTCallExpression) e;
+            if (!(call.callee instanceof IASTIdentifier))
+                return e;
+            String name = ((IASTIdentifier) call.callee).id;
+            Candidate c = candidates.get(name);
+            if (c == null || c.func == caller || isDeclared(name))
+                return e;
+            for (String free : c.freeNames) {
+                if (isDeclared(free))
+                    return e;
+            }
+            return expand(c, call.arguments);
+        }
+
+        void rewrite(List<IASTExpression> exps) {
+            for (int i = 0; i < exps.size(); i++)
+                exps.set(i, rewrite(exps.get(i)));
+        }
+
+        IASTExpression expand(Candidate c, List<IASTExpression> args) {
+            nInlined++;
+            HashMap<String, String> renaming = new HashMap<String, String>();
+            List<String> vars = new ArrayList<String>(c.params);
+            vars.addAll(c.locals);
+            for (String var : vars) {
+                if (!renaming.containsKey(var)) {
+                    String newName = PREFIX + nInlined + "_" + var;
+                    renaming.put(var, newName);
+                    caller.locals.add(newName);
+                }
+            }
+            List<IASTExpression> seq = new ArrayList<IASTExpression>();
+            for (int i = 0; i < args.size(); i++) {
+                if (i < c.params.size())
+                    seq.add(assign(renaming.get(c.params.get(i)), args.get(i)));
+                else
+                    seq.add(args.get(i));
+            }
+            for (int i = args.size(); i < c.params.size(); i++)
+                seq.add(assign(renaming.get(c.params.get(i)), new IASTUndefinedLiteral()));
+            for (String var : c.locals)
+                seq.add(assign(renaming.get(var), new IASTUndefinedLiteral()));
+            Copier copier = new Copier(renaming);
+            for (IASTExpression e : c.exps)
+                seq.add((IASTExpression) e.accept(copier));
+            return new IASTSequenceExpression(seq);
+        }
+
+        IASTExpression assign(String var, IASTExpression value) {
+            return new IASTBinaryExpression(IASTBinaryExpression.Operator.ASSIGN, new IASTIdentifier(var), value);
+        }
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            IASTFunctionExpression savedCaller = caller;
+            caller = node;
+            HashSet<String> declared = new HashSet<String>(node.params);
+            declared.addAll(node.locals);
+            declared.add("arguments");
+            scopes.push(declared);
+            node.body.accept(this);
+            scopes.pop();
+            caller = savedCaller;
+            return null;
+        }
+
+        @Override
+        public Object visitBlockStatement(IASTBlockStatement node) {
+            for (IASTStatement s : node.stmts) {
+                if (s != null)
+                    s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitExpressionStatement(IASTExpressionStatement node) {
+            node.exp = rewrite(node.exp);
+            return null;
+        }
+
+        @Override
+        public Object visitReturnStatement(IASTReturnStatement node) {
+            node.value = rewrite(node.value);
+            return null;
+        }
+
+        @Override
+        public Object visitWithStatement(IASTWithStatement node) {
+            node.object = rewrite(node.object);
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitIfStatement(IASTIfStatement node) {
+            node.test = rewrite(node.test);
+            node.consequent.accept(this);
+            if (node.alternate != null)
+                node.alternate.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitSwitchStatement(IASTSwitchStatement node) {
+            node.discriminant = rewrite(node.discriminant);
+            for (IASTSwitchStatement.CaseClause c : node.cases) {
+                c.test = rewrite(c.test);
+                c.consequent.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitThrowStatement(IASTThrowStatement node) {
+            node.value = rewrite(node.value);
+            return null;
+        }
+
+        @Override
+        public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+            node.body.accept(this);
+            HashSet<String> declared = new HashSet<String>();
+            declared.add(node.param);
+            scopes.push(declared);
+            node.handler.accept(this);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Object visitForStatement(IASTForStatement node) {
+            node.init = rewrite(node.init);
+            node.test = rewrite(node.test);
+            node.update = rewrite(node.update);
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitWhileStatement(IASTWhileStatement node) {
+            node.test = rewrite(node.test);
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitDoWhileStatement(IASTDoWhileStatement node) {
+            node.test = rewrite(node.test);
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitForInStatement(IASTForInStatement node) {
+            node.object = rewrite(node.object);
+            node.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Object visitArrayExpression(IASTArrayExpression node) {
+            rewrite(node.elements);
+            return null;
+        }
+
+        @Override
+        public Object visitObjectExpression(IASTObjectExpression node) {
+            for (IASTObjectExpression.Property p : node.properties)
+                p.value = rewrite(p.value);
+            return null;
+        }
+
+        @Override
+        public Object visitOperatorExpression(IASTOperatorExpression node) {
+            for (int i = 0; i < node.operands.length; i++)
+                node.operands[i] = rewrite(node.operands[i]);
+            return null;
+        }
+
+        @Override
+        public Object visitCallExpression(IASTCallExpression node) {
+            node.callee = rewrite(node.callee);
+            rewrite(node.arguments);
+            return null;
+        }
+
+        @Override
+        public Object visitNewExpression(IASTNewExpression node) {
+            node.constructor = rewrite(node.constructor);
+            rewrite(node.arguments);
+            return null;
+        }
+
+        @Override
+        public Object visitMemberExpression(IASTMemberExpression node) {
+            node.object = rewrite(node.object);
+            node.property = rewrite(node.property);
+            return null;
+        }
+
+        @Override
+        public Object visitSequenceExpression(IASTSequenceExpression node) {
+            rewrite(node.expressions);
+            return null;
+        }
+    }
+
+    // Copies an expression renaming variables.  Literals are shared.
+    static class Copier extends IASTBaseVisitor {
+        HashMap<String, String> renaming;
+
+        Copier(HashMap<String, String> renaming) {
+            this.renaming = renaming;
+        }
+
+        IASTExpression copy(IASTExpression e) {
+            return e == null ? null : (IASTExpression) e.accept(this);
+        }
+
+        List<IASTExpression> copy(List<IASTExpression> exps) {
+            List<IASTExpression> result = new ArrayList<IASTExpression>(exps.size());
+            for (IASTExpression e : exps)
+                result.add(copy(e));
+            return result;
+        }
+
+        @Override
+        public Object visitLiteral(IASTLiteral node) {
+            return node;
+        }
+
+        @Override
+        public Object visitIdentifier(IASTIdentifier node) {
+            String name = renaming.get(node.id);
+            return new IASTIdentifier(name == null ? node.id : name);
+        }
+
+        @Override
+        public Object visitArrayExpression(IASTArrayExpression node) {
+            return new IASTArrayExpression(copy(node.elements));
+        }
+
+        @Override
+        public Object visitObjectExpression(IASTObjectExpression node) {
+            List<IASTObjectExpression.Property> props = new ArrayList<IASTObjectExpression.Property>();
+            for (IASTObjectExpression.Property p : node.properties)
+                props.add(new IASTObjectExpression.Property(p.key, copy(p.value), p.kind));
+            return new IASTObjectExpression(props);
+        }
+
+        @Override
+        public Object visitUnaryExpression(IASTUnaryExpression node) {
+            return new IASTUnaryExpression(node.operator, copy(node.operands[0]), node.prefix);
+        }
+
+        @Override
+        public Object visitBinaryExpression(IASTBinaryExpression node) {
+            return new IASTBinaryExpression(node.operator, copy(node.operands[0]), copy(node.operands[1]));
+        }
+
+        @Override
+        public Object visitTernaryExpression(IASTTernaryExpression node) {
+            return new IASTTernaryExpression(node.operator,
+                    copy(node.operands[0]), copy(node.operands[1]), copy(node.operands[2]));
+        }
+
+        @Override
+        public Object visitCallExpression(IASTCallExpression node) {
+            return new IASTCallExpression(copy(node.callee), copy(node.arguments));
+        }
+
+        @Override
+        public Object visitNewExpression(IASTNewExpression node) {
+            return new IASTNewExpression(copy(node.constructor), copy(node.arguments));
+        }
+
+        @Override
+        public Object visitMemberExpression(IASTMemberExpression node) {
+            return new IASTMemberExpression(copy(node.object), copy(node.property));
+        }
+
+        @Override
+        public Object visitSequenceExpression(IASTSequenceExpression node) {
+            return new IASTSequenceExpression(copy(node.expressions));
+        }
+
+        @Override
+        public Object visitNode(IASTNode node) {
+            throw new Error("cannot copy " + node.getClass().getName());
+        }
+    }
+}
@@ -19,48 +19,67 @@ Electro-communications, which was contributed by the following members.
   Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 public class LiveRegisterAnalyser {
-	HashMap<BCode, Set<Register>> inMap = new HashMap<BCode, Set<Register>>();
-	HashMap<BCode, Set<Register>> outMap = new HashMap<BCode, Set<Register>>();
+	ControlFlowGraph cfg;
+	BitVectorDataflow dataflow;
+	ArrayList<Register> registers = new ArrayList<Register>();
+	List<Set<Register>> liveSets;  // built on demand
 
+	/* registers live just after bc */
 	public Set<Register> getLiveRegisters(BCode bc) {
-		return inMap.get(bc);
+		int i = cfg.indexOf(bc);
+		Set<Register> regs = liveSets.get(i);
+		if (regs == null) {
+			BitSet live = dataflow.getIn(i);
+			regs = new HashSet<Register>();
+			for (int r = live.nextSetBit(0); r >= 0; r = live.nextSetBit(r + 1))
+				regs.add(registers.get(r));
+			liveSets.set(i, regs);
+		}
+		return regs;
 	}
 	
 	public LiveRegisterAnalyser(List<BCode> bcodes) {
-		ControlFlowGraph cfg = new ControlFlowGraph(bcodes);
-		for (BCode bc: bcodes) {
-			inMap.put(bc,  new HashSet<Register>());
-			outMap.put(bc, new HashSet<Register>(bc.getSrcRegisters())); // gen
-		}
-		
-		boolean fixPoint = false;
-		while (!fixPoint) {
-			fixPoint = true;
-			for (ControlFlowGraph.CFGNode n: cfg.getNodes()) {
-				BCode bc = n.getBCode();
-				Set<Register> in = inMap.get(bc);
-				Set<Register> out = outMap.get(bc);
-				/* in += Union succ(out) */
-				for (ControlFlowGraph.CFGNode succ: n.getSuccs()) {
-					BCode succBC = succ.getBCode();
-					if (in.addAll(outMap.get(succBC)))
-						fixPoint = false;
-				}
-				/* out += in - kill */
-				for (Register r: in) {
-					if (r == bc.getDestRegister()) // kill
-						continue;
-					if (out.add(r))
-						fixPoint = false;
-				}
+		cfg = new ControlFlowGraph(bcodes);
+		int n = cfg.getNumberOfInstructions();
+		IdentityHashMap<Register, Integer> index = new IdentityHashMap<Register, Integer>();
+		BitSet[] gen = new BitSet[n];
+		BitSet[] kill = new BitSet[n];
+		for (int i = 0; i < n; i++) {
+			BCode bc = cfg.getBCode(i);
+			gen[i] = new BitSet();
+			// codegen leaves unused operands null, e.g., equal r null null
+			for (int u = 0; u < bc.getNumberOfUses(); u++) {
+				Register r = bc.getUse(u);
+				if (r != null)
+					gen[i].set(registerIndex(r, index));
 			}
+			kill[i] = new BitSet();
+			Register dst = bc.getDestRegister();
+			if (dst != null)
+				kill[i].set(registerIndex(dst, index));
+		}
+		dataflow = new BitVectorDataflow(cfg, BitVectorDataflow.Direction.BACKWARD,
+				BitVectorDataflow.Meet.UNION, registers.size(), gen, kill);
+		liveSets = new ArrayList<Set<Register>>(Collections.<Set<Register>>nCopies(n, null));
+	}
+	
+	private int registerIndex(Register r, IdentityHashMap<Register, Integer> index) {
+		Integer x = index.get(r);
+		if (x == null) {
+			x = registers.size();
+			index.put(r, x);
+			registers.add(r);
 		}
+		return x;
 	}
 	
 	public void print(List<BCode> bcodes) {
@@ -0,0 +1,190 @@
+/*
+   LoopAnalyser.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Dominator tree and natural loops of a ControlFlowGraph.
+ *
+ * Dominators are computed by the iterative algorithm of Cooper, Harvey and
+ * Kennedy over the reverse postorder of the blocks.  Blocks unreachable
+ * from the entry have no immediate dominator and belong to no loop.
+ * Edges to handlers and finally blocks are not in the graph; callers have
+ * to take care of them.
+ */
+public class LoopAnalyser {
+    static class Loop {
+        int header;
+        boolean[] body;
+        int size;
+        ArrayList<Integer> backEdgeSources = new ArrayList<Integer>();
+
+        Loop(int header, int numberOfBlocks) {
+            this.header = header;
+            body = new boolean[numberOfBlocks];
+            body[header] = true;
+            size = 1;
+        }
+
+        boolean contains(int block) {
+            return body[block];
+        }
+
+        // blocks in the loop that have a successor out of the loop or
+        // leave the function
+        List<Integer> getExitingBlocks(ControlFlowGraph cfg) {
+            List<Integer> result = new ArrayList<Integer>();
+            for (int b = 0; b < body.length; b++) {
+                if (!body[b])
+                    continue;
+                int[] succs = cfg.getBlock(b).getSuccs();
+                if (succs.length == 0)
+                    result.add(b);
+                for (int succ: succs)
+                    if (!body[succ]) {
+                        result.add(b);
+                        break;
+                    }
+            }
+            return result;
+        }
+    }
+
+    private ControlFlowGraph cfg;
+    private int[] idom;       // -1 for the entry and unreachable blocks
+    private int[] rpoNumber;  // -1 for unreachable blocks
+    private List<Loop> loops = new ArrayList<Loop>();
+
+    LoopAnalyser(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        int n = cfg.getNumberOfBlocks();
+        idom = new int[n];
+        rpoNumber = new int[n];
+        Arrays.fill(idom, -1);
+        Arrays.fill(rpoNumber, -1);
+        int[] order = cfg.getOrder();
+        for (int k = 0; k < cfg.getNumberOfReachableBlocks(); k++)
+            rpoNumber[order[k]] = k;
+        if (n > 0) {
+            computeDominators(order);
+            findLoops(order);
+        }
+    }
+
+    private void computeDominators(int[] order) {
+        int entry = order[0];
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 1; k < cfg.getNumberOfReachableBlocks(); k++) {
+                int b = order[k];
+                int newIdom = -1;
+                for (int pred: cfg.getBlock(b).getPreds()) {
+                    if (idom[pred] < 0)
+                        continue;
+                    newIdom = newIdom < 0 ? pred : intersect(pred, newIdom);
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        idom[entry] = -1;
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (rpoNumber[a] > rpoNumber[b])
+                a = idom[a];
+            while (rpoNumber[b] > rpoNumber[a])
+                b = idom[b];
+        }
+        return a;
+    }
+
+    // An edge n -> h is a back edge if h dominates n.  Back edges to the
+    // same header make one loop.
+    private void findLoops(int[] order) {
+        Loop[] loopOfHeader = new Loop[cfg.getNumberOfBlocks()];
+        int[] work = new int[cfg.getNumberOfBlocks()];
+        for (int k = 0; k < cfg.getNumberOfReachableBlocks(); k++) {
+            int n = order[k];
+            for (int h: cfg.getBlock(n).getSuccs()) {
+                if (!dominates(h, n))
+                    continue;
+                Loop loop = loopOfHeader[h];
+                if (loop == null) {
+                    loop = new Loop(h, cfg.getNumberOfBlocks());
+                    loopOfHeader[h] = loop;
+                    loops.add(loop);
+                }
+                loop.backEdgeSources.add(n);
+                int sp = 0;
+                if (!loop.body[n]) {
+                    loop.body[n] = true;
+                    loop.size++;
+                    work[sp++] = n;
+                }
+                while (sp > 0) {
+                    int m = work[--sp];
+                    for (int pred: cfg.getBlock(m).getPreds())
+                        if (rpoNumber[pred] >= 0 && !loop.body[pred]) {
+                            loop.body[pred] = true;
+                            loop.size++;
+                            work[sp++] = pred;
+                        }
+                }
+            }
+        }
+    }
+
+    public int getImmediateDominator(int block) {
+        return idom[block];
+    }
+
+    public boolean dominates(int a, int b) {
+        if (rpoNumber[b] < 0)
+            return false;
+        for (int n = b; n >= 0; n = idom[n])
+            if (n == a)
+                return true;
+        return false;
+    }
+
+    // Loops, inner ones first.
+    public List<Loop> getLoops() {
+        List<Loop> result = new ArrayList<Loop>(loops);
+        Collections.sort(result, new Comparator<Loop>() {
+            @Override
+            public int compare(Loop a, Loop b) {
+                return a.size - b.size;
+            }
+        });
+        return result;
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+   LoopInvariantCodeMotion.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Moves loop invariant instructions to the preheader of the loop.
+ *
+ * Hoisted are constant loads and, in loops that neither call functions nor
+ * write properties or global variables, getglobal of a name loaded by an
+ * invariant instruction.  An instruction is moved if it is the only
+ * definition of its destination register in the loop, the register is not
+ * live at the loop entry, and the instruction dominates every exit from
+ * which the register is live, or every exit if it may throw.  Conversion
+ * of objects to primitives by operators is assumed not to write global
+ * variables.
+ *
+ * The preheader is placed just before the header.  Labels on the header,
+ * which are targets of jumps from outside of the loop, move to the
+ * preheader.  Back edges are redirected to a new label on the header, and
+ * a jump is inserted if the back edge was a fall through.
+ *
+ * Not applied to functions with handlers or finally blocks, whose edges
+ * are not in ControlFlowGraph.
+ */
+public class LoopInvariantCodeMotion {
+    List<BCode> bcodes;
+
+    LoopInvariantCodeMotion(List<BCode> bcodes) {
+        this.bcodes = new ArrayList<BCode>(bcodes);
+    }
+
+    public List<BCode> exec() {
+        for (BCode bc: bcodes)
+            if (bc instanceof IPushhandler || bc instanceof ILocalcall)
+                return bcodes;
+        // Hoisting out of a loop changes the graph; start over each time.
+        while (hoistOne())
+            ;
+        return bcodes;
+    }
+
+    private boolean hoistOne() {
+        ControlFlowGraph cfg = new ControlFlowGraph(bcodes);
+        LoopAnalyser la = new LoopAnalyser(cfg);
+        LiveRegisterAnalyser lra = null;
+        for (LoopAnalyser.Loop loop: la.getLoops()) {
+            if (lra == null)
+                lra = new LiveRegisterAnalyser(bcodes);
+            List<BCode> hoisted = findInvariants(loop, cfg, la, lra);
+            if (!hoisted.isEmpty() && moveToPreheader(loop, hoisted, cfg))
+                return true;
+        }
+        return false;
+    }
+
+    static boolean isConstant(BCode bc) {
+        return AvailableExpressionAnalyser.computeGenValue(bc) != null;
+    }
+
+    static boolean writesGlobal(BCode bc) {
+        return bc instanceof MCall || bc instanceof ICall || bc instanceof ISend ||
+               bc instanceof INew || bc instanceof INewsend ||
+               bc instanceof ISetprop || bc instanceof ISetglobal || bc instanceof ISetglobalslot;
+    }
+
+    static Set<Integer> registerNumbers(Set<Register> regs) {
+        HashSet<Integer> result = new HashSet<Integer>();
+        for (Register r: regs)
+            result.add(r.getRegisterNumber());
+        return result;
+    }
+
+    // registers live just before bc
+    static Set<Integer> liveIn(BCode bc, LiveRegisterAnalyser lra) {
+        Set<Integer> result = registerNumbers(lra.getLiveRegisters(bc));
+        Register dst = bc.getDestRegister();
+        if (dst != null)
+            result.remove(dst.getRegisterNumber());
+        for (int i = 0; i < bc.getNumberOfUses(); i++) {
+            Register r = bc.getUse(i);
+            if (r != null)
+                result.add(r.getRegisterNumber());
+        }
+        return result;
+    }
+
+    // a dominates b, where a and b are instruction indices
+    static boolean dominates(int a, int b, ControlFlowGraph cfg, LoopAnalyser la) {
+        int blockA = cfg.getBlockOf(a);
+        int blockB = cfg.getBlockOf(b);
+        if (blockA == blockB)
+            return a <= b;
+        return la.dominates(blockA, blockB);
+    }
+
+    private List<BCode> findInvariants(LoopAnalyser.Loop loop, ControlFlowGraph cfg, LoopAnalyser la, LiveRegisterAnalyser lra) {
+        boolean globalsUnchanged = true;
+        HashMap<Integer, Integer> defCount = new HashMap<Integer, Integer>();
+        for (int i = 0; i < bcodes.size(); i++) {
+            if (!loop.contains(cfg.getBlockOf(i)))
+                continue;
+            BCode bc = bcodes.get(i);
+            if (writesGlobal(bc))
+                globalsUnchanged = false;
+            Register dst = bc.getDestRegister();
+            if (dst != null) {
+                Integer c = defCount.get(dst.getRegisterNumber());
+                defCount.put(dst.getRegisterNumber(), c == null ? 1 : c + 1);
+            }
+        }
+
+        BCode headerBC = cfg.getBCode(cfg.getBlock(loop.header).getFirst());
+        Set<Integer> liveAtEntry = liveIn(headerBC, lra);
+        List<Integer> exiting = loop.getExitingBlocks(cfg);
+        HashSet<Integer> invariantRegs = new HashSet<Integer>();
+        List<BCode> hoisted = new ArrayList<BCode>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < bcodes.size(); i++) {
+                BCode bc = bcodes.get(i);
+                if (!loop.contains(cfg.getBlockOf(i)) || hoisted.contains(bc))
+                    continue;
+                boolean mayThrow;
+                if (isConstant(bc))
+                    mayThrow = false;
+                else if (globalsUnchanged && (bc instanceof IGetglobal || bc instanceof IGetglobalslot))
+                    mayThrow = true;
+                else
+                    continue;
+                boolean srcsInvariant = true;
+                for (int u = 0; u < bc.getNumberOfUses(); u++) {
+                    int r = bc.getUse(u).getRegisterNumber();
+                    if (defCount.containsKey(r) && !invariantRegs.contains(r))
+                        srcsInvariant = false;
+                }
+                if (!srcsInvariant)
+                    continue;
+                int d = bc.getDestRegister().getRegisterNumber();
+                if (defCount.get(d) != 1 || liveAtEntry.contains(d))
+                    continue;
+                boolean dominatesExits = true;
+                for (int e: exiting) {
+                    ControlFlowGraph.BasicBlock eb = cfg.getBlock(e);
+                    if (dominates(i, eb.getLast(), cfg, la))
+                        continue;
+                    if (mayThrow)
+                        dominatesExits = false;
+                    for (int succ: eb.getSuccs())
+                        if (!loop.contains(succ) && liveIn(cfg.getBCode(cfg.getBlock(succ).getFirst()), lra).contains(d))
+                            dominatesExits = false;
+                }
+                if (!dominatesExits)
+                    continue;
+                hoisted.add(bc);
+                invariantRegs.add(d);
+                changed = true;
+            }
+        }
+        return hoisted;
+    }
+
+    private boolean moveToPreheader(LoopAnalyser.Loop loop, List<BCode> hoisted, ControlFlowGraph cfg) {
+        HashSet<BCode> moved = new HashSet<BCode>(hoisted);
+        int headerIndex = cfg.getBlock(loop.header).getFirst();
+        // The header itself may be hoisted; the loop then starts at the
+        // first instruction left.
+        int newHeaderIndex = headerIndex;
+        while (newHeaderIndex < bcodes.size() && moved.contains(bcodes.get(newHeaderIndex)))
+            newHeaderIndex++;
+        if (newHeaderIndex == bcodes.size() || !loop.contains(cfg.getBlockOf(newHeaderIndex)))
+            return false;
+        BCode header = bcodes.get(newHeaderIndex);
+
+        // Remove hoisted instructions.  Their labels move to the next one.
+        List<BCode> newBCodes = new ArrayList<BCode>(bcodes.size() + 1);
+        List<Label> pendingLabels = new ArrayList<Label>();
+        for (BCode bc: bcodes) {
+            if (moved.contains(bc)) {
+                pendingLabels.addAll(bc.getLabels());
+                bc.getLabels().clear();
+                continue;
+            }
+            if (!pendingLabels.isEmpty()) {
+                bc.addLabels(pendingLabels);
+                pendingLabels.clear();
+            }
+            newBCodes.add(bc);
+        }
+
+        Label backLabel = new Label(header);
+        for (int i = 0; i < bcodes.size(); i++) {
+            BCode bc = bcodes.get(i);
+            if (loop.contains(cfg.getBlockOf(i)) && !moved.contains(bc) && bc.getBranchTarget() == header)
+                bc.setBranchLabel(backLabel);
+        }
+        int pos = newBCodes.indexOf(header);
+        BCode prev = pos > 0 ? newBCodes.get(pos - 1) : null;
+        if (prev != null && prev.isFallThroughInstruction() && loop.contains(cfg.getBlockOf(cfg.indexOf(prev))))
+            newBCodes.add(pos++, new IJump(backLabel));
+
+        hoisted.get(0).addLabels(header.getLabels());
+        header.getLabels().clear();
+        List<Label> headerLabels = new ArrayList<Label>();
+        headerLabels.add(backLabel);
+        header.addLabels(headerLabels);
+        newBCodes.addAll(pos, hoisted);
+        bcodes = newBCodes;
+        return true;
+    }
+}
@@ -21,21 +21,36 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import ejsc.antlr.*;
+import ejsc.ast_node.ESTreeJsonReader;
+import ejsc.ast_node.ESTreeJsonWriter;
 
+import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Main {
@@ -44,6 +59,8 @@ public class Main {
         List<String> inputFileNames = new LinkedList<String>();   // .js
         String outputFileName;  // .sbc
         String testFileName;    // -test.js
+        String parserCacheFileName;
+        String bcodeCacheDirName;
 		enum OptLocals {
 				NONE,
 				PROSYM,
@@ -62,7 +79,21 @@ public class Main {
         boolean optCopyPropagation = false;
         boolean optRegisterAssignment = false;
         boolean optCommonConstantElimination = false;
+        boolean optLoopInvariantCodeMotion = false;
+        boolean optConstantFolding = false;
+        boolean optCompactCode = false;
+        boolean optTailCall = false;
+        boolean optTailRecursion = false;
+        boolean optInline = false;
+        int inlineBudget = Inliner.DEFAULT_BUDGET;
+        boolean optDirectCall = false;
+        boolean optGlobalSlots = false;
+        boolean optConstantParameters = false;
         boolean optEnableTesting = false;
+        boolean optParallelParse = false;
+        boolean optParseSLL = false;
+        boolean optHandLexer = false;
+        boolean optPrintParseStats = false;
 		OptLocals optLocals = OptLocals.NONE;
 
         static Info parseOption(String[] args) {
@@ -85,6 +116,9 @@ public class Main {
                     case "--show-opt":
                         info.optPrintOptimisation = true;
                         break;
+                    case "--show-parse-stats":
+                        info.optPrintParseStats = true;
+                        break;
                     case "--help":
                         info.optHelp = true;
                         break;
@@ -112,12 +146,58 @@ public class Main {
 					case "-opt-cce":
 					    info.optCommonConstantElimination = true;
 					    break;
+					case "-opt-licm":
+					    info.optLoopInvariantCodeMotion = true;
+					    break;
 					case "-opt-copy":
 						info.optCopyPropagation = true;
 						break;
 					case "-opt-reg":
 					    info.optRegisterAssignment = true;
 					    break;
+					case "-opt-fold":
+					    info.optConstantFolding = true;
+					    break;
+					case "-opt-compact":
+					    info.optCompactCode = true;
+					    break;
+					case "-opt-tail":
+					    info.optTailCall = true;
+					    break;
+					case "-opt-tailrec":
+					    info.optTailRecursion = true;
+					    break;
+					case "-opt-inline":
+					    info.optInline = true;
+					    break;
+					case "-opt-inline-budget":
+					    info.optInline = true;
+					    info.inlineBudget = Integer.parseInt(args[++i]);
+					    break;
+					case "-opt-direct-call":
+					    info.optDirectCall = true;
+					    break;
+					case "-opt-global-slots":
+					    info.optGlobalSlots = true;
+					    break;
+					case "-opt-const-param":
+					    info.optConstantParameters = true;
+					    break;
+					case "-parallel-parse":
+					    info.optParallelParse = true;
+					    break;
+					case "-parse-sll":
+					    info.optParseSLL = true;
+					    break;
+					case "-hand-lexer":
+					    info.optHandLexer = true;
+					    break;
+					case "-parser-cache":
+					    info.parserCacheFileName = args[++i];
+					    break;
+					case "-bc-cache":
+					    info.bcodeCacheDirName = args[++i];
+					    break;
                     case "-test":
                         i++;
                         if (i >= args.length) {
@@ -147,7 +227,16 @@ public class Main {
         }
     }
 
+    // Output file name "-" means the standard output.
     void writeBCodeToSBCFile(List<BCode> bcodes, String filename) {
+        if (filename.equals("-")) {
+            PrintWriter pw = new PrintWriter(System.out);
+            for (BCode bc : bcodes) {
+                pw.println(bc.toString());
+            }
+            pw.flush();
+            return;
+        }
         try {
             File file = new File(filename);
             PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)));
@@ -160,41 +249,151 @@ public class Main {
         }
     }
 
-    void run(String[] args) {
+    // Number of files that could not be parsed with SLL prediction
+    // and were parsed again with full LL prediction.
+    static final AtomicInteger numberOfLLFallbacks = new AtomicInteger();
+
+    // Parse a JavaScript file and convert ANTLR's parse tree into ESTree.
+    static ejsc.ast_node.Program parseFile(String fname, Info info) throws IOException {
+        if (fname.endsWith(".json"))
+            return readESTreeFile(fname);
+        CharStream antlrInStream = new MappedCharStream(fname);
+        TokenSource lexer;
+        if (info.optHandLexer)
+            lexer = new ECMAScriptHandLexer(antlrInStream);
+        else
+            lexer = new ECMAScriptLexer(antlrInStream);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        ECMAScriptParser parser = new ECMAScriptParser(tokens);
+        ParseTree tree;
+        if (!info.optParseSLL)
+            tree = parser.program();
+        else {
+            // Two-stage parsing (-parse-sll).  SLL prediction is faster
+            // than LL and gives the same parse tree whenever it succeeds.
+            // If it fails, we parse the file again with full LL prediction,
+            // which also reports syntax errors properly.  The SLL pass is
+            // then wasted, which makes large files such as jquery.js about
+            // three times slower, so this is not the default.
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            try {
+                tree = parser.program();
+            } catch (ParseCancellationException e) {
+                numberOfLLFallbacks.incrementAndGet();
+                tokens.seek(0);
+                parser.reset();
+                parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                tree = parser.program();
+            }
+        }
+
+        // Source locations are only needed by --estree.
+        ASTGenerator astgen = new ASTGenerator(info.optPrintESTree);
+        return (ejsc.ast_node.Program) astgen.visit(tree);
+    }
+
+    // Read a file of ESTree JSON produced by another parser.
+    static ejsc.ast_node.Program readESTreeFile(String fname) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fname), "UTF-8"));
+        try {
+            return new ESTreeJsonReader(reader).read();
+        } finally {
+            reader.close();
+        }
+    }
+
+    static class ParseTask extends RecursiveTask<ejsc.ast_node.Program> {
+        private static final long serialVersionUID = 1L;
+
+        String fname;
+        Info info;
+        IOException exception;
+
+        ParseTask(String fname, Info info) {
+            this.fname = fname;
+            this.info = info;
+        }
+
+        @Override
+        protected ejsc.ast_node.Program compute() {
+            try {
+                return parseFile(fname, info);
+            } catch (IOException e) {
+                exception = e;
+                return null;
+            }
+        }
+    }
+
+    // Parse files on a fork-join pool.  The result is in the same order
+    // as fnames so that mergePrograms produces the same program as
+    // sequential parsing.  ANTLR's lexer and parser share their DFA
+    // caches between instances in a thread-safe manner.
+    static List<ejsc.ast_node.Program> parseFilesInParallel(List<String> fnames, Info info) throws IOException {
+        List<ParseTask> tasks = new ArrayList<ParseTask>(fnames.size());
+        for (String fname : fnames)
+            tasks.add(new ParseTask(fname, info));
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (ParseTask task : tasks)
+                pool.execute(task);
+            List<ejsc.ast_node.Program> programs = new LinkedList<ejsc.ast_node.Program>();
+            for (ParseTask task : tasks) {
+                ejsc.ast_node.Program program = task.join();
+                if (task.exception != null)
+                    throw task.exception;
+                programs.add(program);
+            }
+            return programs;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Returns false if an input file cannot be read.
+    boolean run(String[] args) {
 
         // Parse command line option.
         Info info = Info.parseOption(args);
         if (info.optHelp && info.inputFileNames.size() == 0) {
             // TODO print how to use ...
-            return;
+            return true;
         }
 
-        List<ejsc.ast_node.Program> programs = new LinkedList<ejsc.ast_node.Program>();
-        for (String fname : info.inputFileNames) {
-            // Parse JavaScript File
-            ANTLRInputStream antlrInStream;
-            try {
-                InputStream inStream;
-                inStream = new FileInputStream(fname);
-                antlrInStream = new ANTLRInputStream(inStream);
-            } catch (IOException e) {
-                System.out.println(e);
-                return;
+        int numberOfLLFallbacksBefore = numberOfLLFallbacks.get();
+        List<ejsc.ast_node.Program> programs;
+        try {
+            if (info.parserCacheFileName != null)
+                ParserDFACache.load(info.parserCacheFileName);
+            if (info.optParallelParse)
+                programs = parseFilesInParallel(info.inputFileNames, info);
+            else {
+                programs = new LinkedList<ejsc.ast_node.Program>();
+                for (String fname : info.inputFileNames)
+                    programs.add(parseFile(fname, info));
             }
-            ECMAScriptLexer lexer = new ECMAScriptLexer(antlrInStream);
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            ECMAScriptParser parser = new ECMAScriptParser(tokens);
-            ParseTree tree = parser.program();
-
-            // convert ANTLR's parse tree into ESTree.
-            ASTGenerator astgen = new ASTGenerator();
-            programs.add((ejsc.ast_node.Program) astgen.visit(tree));
+            if (info.parserCacheFileName != null)
+                ParserDFACache.save(info.parserCacheFileName);
+        } catch (IOException e) {
+            System.out.println(e);
+            return false;
+        }
+        if (info.optPrintParseStats) {
+            int n = numberOfLLFallbacks.get() - numberOfLLFallbacksBefore;
+            System.out.println("LL fallback: " + n + " / " + programs.size() + " files");
         }
 
         ejsc.ast_node.Program ast = ejsc.ast_node.Program.mergePrograms(programs);
 
         if (info.optPrintESTree) {
-            System.out.println(ast.getEsTree());
+            PrintWriter pw = new PrintWriter(System.out);
+            new ESTreeJsonWriter(pw).write(ast);
+            pw.println();
+            pw.flush();
         }
 
         // normalize ESTree.
@@ -212,6 +411,10 @@ public class Main {
         }
 
         // iAST level optimisation
+        if (info.optConstantFolding)
+            new ConstantFolder().fold((IASTProgram) iast);
+        if (info.optTailRecursion)
+            new TailRecursionElimination().transform((IASTProgram) iast);
 		if (info.optLocals != Info.OptLocals.NONE) {
             // iAST newargs analyzer
 			NewargsAnalyzer analyzer = new NewargsAnalyzer(info.optLocals);
@@ -220,11 +423,39 @@ public class Main {
                 new IASTPrinter().print(iast);
             }
         }
+        // uses the results of NewargsAnalyzer; nothing is inlined without it
+        if (info.optInline)
+            new Inliner(info.inlineBudget).inline((IASTProgram) iast);
+        Set<String> directCallees = null;
+        if (info.optDirectCall)
+            directCallees = new DirectCallAnalyzer().analyze((IASTProgram) iast);
+        if (info.optConstantParameters)
+            new ConstantParameterAnalyzer().analyze((IASTProgram) iast);
+        if (info.optTailCall)
+            new TailCallAnalyzer().analyze(iast);
 
         // convert iAST into low level code.
 		CodeGenerator codegen = new CodeGenerator(info.optLocals);
+        if (info.optGlobalSlots)
+            codegen.globalSlots = new GlobalSlotAnalyzer().analyze((IASTProgram) iast, null);
+        else if (directCallees != null)
+            codegen.globalSlots = new GlobalSlotAnalyzer().analyze((IASTProgram) iast, directCallees);
         BCBuilder bcBuilder = codegen.compile((IASTProgram) iast);
 
+        // Functions found in the bytecode cache skip optimisation and
+        // macro expansion.  Debug printing needs the whole pipeline.
+        BCodeCache bcodeCache = null;
+        if (info.bcodeCacheDirName != null) {
+            try {
+                bcodeCache = new BCodeCache(info.bcodeCacheDirName);
+            } catch (IOException e) {
+                System.out.println(e);
+                return false;
+            }
+            if (!info.optPrintOptimisation && !info.optPrintLowLevelCode)
+                bcBuilder.lookupCache(bcodeCache, info);
+        }
+
         bcBuilder.optimisation(info);
 
         if (info.optPrintLowLevelCode) {
@@ -243,12 +474,26 @@ public class Main {
         	System.out.print(bcBuilder);
         }
 
+        if (bcodeCache != null) {
+            bcBuilder.storeCache(bcodeCache);
+            try {
+                bcodeCache.flush();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+
         List<BCode> bcodes = bcBuilder.build();
 
         writeBCodeToSBCFile(bcodes, info.outputFileName);
+        return true;
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("--server")) {
+            new CompileServer().serve(System.in, System.out);
+            return;
+        }
         new Main().run(args);
     }
 }
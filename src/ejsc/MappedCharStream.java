@@ -0,0 +1,138 @@
+package ejsc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/*
+ * CharStream over a memory-mapped UTF-8 file.
+ *
+ * ANTLRInputStream reads the whole file and decodes it into a char[].
+ * Most JavaScript files are ASCII only, so characters are read directly
+ * from the mapped bytes up to the first non-ASCII byte.  Only the rest of
+ * the file after it, if any, is decoded into a char[].  Behaves as
+ * ANTLRInputStream otherwise.
+ */
+class MappedCharStream implements CharStream {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    String name;
+    MappedByteBuffer bytes;
+    int asciiLength;   // bytes[0..asciiLength) are ASCII characters
+    char[] rest;       // decoded characters after them
+    int n;             // number of characters
+    int p = 0;         // index of the next character
+
+    MappedCharStream(String fname) throws IOException {
+        name = fname;
+        FileChannel ch = FileChannel.open(new File(fname).toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("file too large: " + fname);
+            bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            ch.close();
+        }
+        int limit = bytes.limit();
+        int i = 0;
+        while (i < limit && bytes.get(i) >= 0)
+            i++;
+        asciiLength = i;
+        if (i < limit) {
+            ByteBuffer b = bytes.duplicate();
+            b.position(i);
+            // Malformed input is replaced with U+FFFD as InputStreamReader does.
+            CharBuffer chars = UTF8.decode(b);
+            rest = new char[chars.remaining()];
+            chars.get(rest);
+        } else
+            rest = new char[0];
+        n = asciiLength + rest.length;
+    }
+
+    char charAt(int i) {
+        if (i < asciiLength)
+            return (char) bytes.get(i);
+        return rest[i - asciiLength];
+    }
+
+    @Override
+    public void consume() {
+        if (p >= n)
+            throw new IllegalStateException("cannot consume EOF");
+        p++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0)
+            return 0;  // undefined
+        if (i < 0) {
+            i++;
+            if (p + i - 1 < 0)
+                return IntStream.EOF;
+        }
+        if (p + i - 1 >= n)
+            return IntStream.EOF;
+        return charAt(p + i - 1);
+    }
+
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return p;
+    }
+
+    @Override
+    public void seek(int index) {
+        p = Math.min(index, n);
+    }
+
+    @Override
+    public int size() {
+        return n;
+    }
+
+    @Override
+    public String getSourceName() {
+        return name;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = interval.a;
+        int stop = Math.min(interval.b, n - 1);
+        if (start >= n)
+            return "";
+        char[] text = new char[stop - start + 1];
+        int i = start;
+        for (; i <= stop && i < asciiLength; i++)
+            text[i - start] = (char) bytes.get(i);
+        if (i <= stop)
+            System.arraycopy(rest, i - asciiLength, text, i - start, stop - i + 1);
+        return new String(text);
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, n - 1));
+    }
+}
@@ -62,13 +62,15 @@ public class NewargsAnalyzer extends IASTBaseVisitor {
         boolean useFunc = analyzer.useFunction;
         boolean hasLocals = !node.locals.isEmpty();
 
+        Set<String> declared = new HashSet<String>(node.params);
+        declared.addAll(node.locals);
         for (String var : analyzer.variables) {
-            if (node.params.contains(var) || node.locals.contains(var))
+            if (declared.contains(var))
                 continue;
             this.freeVariables.add(var);
         }
         for (String var : analyzer.freeVariables) {
-            if (node.params.contains(var) || node.locals.contains(var))
+            if (declared.contains(var))
                 node.innerUsedLocals.add(var);
             else
                 this.freeVariables.add(var);
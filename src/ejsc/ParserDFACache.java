@@ -0,0 +1,554 @@
+package ejsc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNConfig;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.atn.ATNSimulator;
+import org.antlr.v4.runtime.atn.ArrayPredictionContext;
+import org.antlr.v4.runtime.atn.EmptyPredictionContext;
+import org.antlr.v4.runtime.atn.PredictionContext;
+import org.antlr.v4.runtime.atn.SemanticContext;
+import org.antlr.v4.runtime.atn.SingletonPredictionContext;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import ejsc.antlr.ECMAScriptParser;
+
+/*
+ * Persistent cache of the prediction DFAs of ECMAScriptParser.
+ *
+ * ANTLR builds the DFAs lazily while parsing, so a fresh JVM parses
+ * in slow ATN simulation mode until the DFAs are warmed up.  This class
+ * saves the warmed DFAs of all decisions to a file and loads them into
+ * the (static) DFA tables of ECMAScriptParser, so that the next process
+ * starts at warm-parser speed.
+ *
+ * A DFA state is saved together with its ATN configurations because the
+ * parser extends the DFA from them when it meets a new lookahead.  ATN
+ * states are saved by their state numbers; prediction contexts and
+ * semantic contexts are saved as tables shared by all DFAs.  The file is
+ * bound to the serialized ATN of the parser and is ignored when the
+ * grammar has changed.
+ */
+public class ParserDFACache {
+    static final int MAGIC = 0x454a5344;  // "EJSD"
+    static final int VERSION = 1;
+
+    // sentinel indexes
+    static final int NULL_INDEX = -1;
+    static final int ERROR_STATE_INDEX = -2;
+
+    // tags of semantic contexts
+    static final int SEM_NONE = 0;
+    static final int SEM_PREDICATE = 1;
+    static final int SEM_PRECEDENCE = 2;
+    static final int SEM_AND = 3;
+    static final int SEM_OR = 4;
+
+    // tags of prediction contexts
+    static final int CTX_EMPTY = 0;
+    static final int CTX_SINGLETON = 1;
+    static final int CTX_ARRAY = 2;
+
+    private static boolean loaded = false;
+    private static int numberOfLoadedStates = 0;
+
+    static DFA[] getDecisionToDFA() {
+        // The DFA table is shared by all instances of ECMAScriptParser.
+        return new ECMAScriptParser(null).getInterpreter().decisionToDFA;
+    }
+
+    static ATN getATN() {
+        return new ECMAScriptParser(null).getATN();
+    }
+
+    static int getNumberOfStates() {
+        int n = 0;
+        for (DFA dfa : getDecisionToDFA()) {
+            synchronized (dfa.states) {
+                n += dfa.states.size();
+            }
+        }
+        return n;
+    }
+
+    static int getATNChecksum() {
+        return ECMAScriptParser._serializedATN.hashCode();
+    }
+
+    /*
+     * Load the DFAs from the file into the empty DFAs of the parser.
+     * Returns false if the file does not exist or does not match the
+     * parser.  Loading is done at most once in a process.
+     */
+    static synchronized boolean load(String filename) throws IOException {
+        if (loaded)
+            return true;
+        File file = new File(filename);
+        if (!file.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (!new Reader(in).read())
+                return false;
+        } finally {
+            in.close();
+        }
+        loaded = true;
+        numberOfLoadedStates = getNumberOfStates();
+        return true;
+    }
+
+    /*
+     * Save the current DFAs of the parser if they have grown since they
+     * were loaded.  Returns false if the file is left as it is.  The file
+     * is replaced atomically so that concurrent compilers never read a
+     * partial file.
+     */
+    static synchronized boolean save(String filename) throws IOException {
+        if (loaded && getNumberOfStates() <= numberOfLoadedStates)
+            return false;
+        File file = new File(filename);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            new Writer(out).write();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+        return true;
+    }
+
+    /* clear all DFAs to measure cold parsing */
+    static synchronized void clear() {
+        new ECMAScriptParser(null).getInterpreter().clearDFA();
+        loaded = false;
+        numberOfLoadedStates = 0;
+    }
+
+    // ATNConfigSet.conflictingAlts is protected but used by the parser
+    // when it falls back to full context prediction.
+    static Field getConflictingAltsField() {
+        try {
+            Field f = ATNConfigSet.class.getDeclaredField("conflictingAlts");
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    static class Writer {
+        DataOutputStream out;
+        IdentityHashMap<PredictionContext, Integer> contextIndex = new IdentityHashMap<PredictionContext, Integer>();
+        List<PredictionContext> contexts = new ArrayList<PredictionContext>();
+        IdentityHashMap<SemanticContext, Integer> semanticIndex = new IdentityHashMap<SemanticContext, Integer>();
+        List<SemanticContext> semantics = new ArrayList<SemanticContext>();
+        Field conflictingAltsField = getConflictingAltsField();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write() throws IOException {
+            DFA[] decisionToDFA = getDecisionToDFA();
+
+            // DFAs are written first into a buffer so that the context
+            // tables, which are collected on the way, can precede them.
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream dfaOut = new DataOutputStream(buf);
+            dfaOut.writeInt(decisionToDFA.length);
+            for (DFA dfa : decisionToDFA)
+                writeDFA(dfaOut, dfa);
+            dfaOut.flush();
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(getATNChecksum());
+            out.writeInt(semantics.size());
+            for (SemanticContext sem : semantics)
+                writeSemanticContextEntry(sem);
+            out.writeInt(contexts.size());
+            for (PredictionContext ctx : contexts)
+                writeContextEntry(ctx);
+            buf.writeTo(out);
+        }
+
+        void writeDFA(DataOutputStream out, DFA dfa) throws IOException {
+            List<DFAState> states;
+            synchronized (dfa.states) {
+                states = new ArrayList<DFAState>(dfa.states.values());
+            }
+            DFAState s0 = dfa.s0;
+            if (s0 != null && dfa.isPrecedenceDfa())
+                states.add(s0);  // not in dfa.states
+            IdentityHashMap<DFAState, Integer> stateIndex = new IdentityHashMap<DFAState, Integer>();
+            for (DFAState s : states)
+                stateIndex.put(s, stateIndex.size());
+
+            out.writeInt(states.size());
+            if (states.isEmpty())
+                return;
+            for (DFAState s : states)
+                writeState(out, s);
+            for (DFAState s : states) {
+                DFAState[] edges;
+                synchronized (s) {
+                    edges = s.edges == null ? null : s.edges.clone();
+                }
+                if (edges == null) {
+                    out.writeInt(NULL_INDEX);
+                    continue;
+                }
+                out.writeInt(edges.length);
+                for (DFAState t : edges) {
+                    if (t == null)
+                        out.writeInt(NULL_INDEX);
+                    else if (t == ATNSimulator.ERROR)
+                        out.writeInt(ERROR_STATE_INDEX);
+                    else {
+                        Integer index = stateIndex.get(t);
+                        out.writeInt(index == null ? NULL_INDEX : index);
+                    }
+                }
+            }
+            out.writeInt(s0 == null ? NULL_INDEX : stateIndex.get(s0));
+        }
+
+        void writeState(DataOutputStream out, DFAState s) throws IOException {
+            out.writeInt(s.stateNumber);
+            out.writeBoolean(s.isAcceptState);
+            out.writeInt(s.prediction);
+            out.writeBoolean(s.requiresFullContext);
+            if (s.predicates == null)
+                out.writeInt(NULL_INDEX);
+            else {
+                out.writeInt(s.predicates.length);
+                for (DFAState.PredPrediction p : s.predicates) {
+                    out.writeInt(registerSemanticContext(p.pred));
+                    out.writeInt(p.alt);
+                }
+            }
+            writeConfigSet(out, s.configs);
+        }
+
+        void writeConfigSet(DataOutputStream out, ATNConfigSet configs) throws IOException {
+            out.writeBoolean(configs.fullCtx);
+            out.writeBoolean(configs.isReadonly());
+            out.writeInt(configs.uniqueAlt);
+            out.writeBoolean(configs.hasSemanticContext);
+            out.writeBoolean(configs.dipsIntoOuterContext);
+            BitSet conflictingAlts;
+            try {
+                conflictingAlts = (BitSet) conflictingAltsField.get(configs);
+            } catch (IllegalAccessException e) {
+                throw new Error(e);
+            }
+            if (conflictingAlts == null)
+                out.writeInt(NULL_INDEX);
+            else {
+                long[] words = conflictingAlts.toLongArray();
+                out.writeInt(words.length);
+                for (long w : words)
+                    out.writeLong(w);
+            }
+            out.writeInt(configs.size());
+            for (ATNConfig c : configs) {
+                out.writeInt(c.state.stateNumber);
+                out.writeInt(c.alt);
+                out.writeInt(registerContext(c.context));
+                out.writeInt(c.reachesIntoOuterContext);
+                out.writeInt(registerSemanticContext(c.semanticContext));
+            }
+        }
+
+        // Contexts are numbered in post order so that parents precede
+        // their children in the table.
+        int registerContext(PredictionContext ctx) {
+            if (ctx == null)
+                return NULL_INDEX;
+            Integer index = contextIndex.get(ctx);
+            if (index != null)
+                return index;
+            for (int i = 0; i < ctx.size(); i++)
+                registerContext(ctx.getParent(i));
+            contextIndex.put(ctx, contexts.size());
+            contexts.add(ctx);
+            return contexts.size() - 1;
+        }
+
+        int registerSemanticContext(SemanticContext sem) {
+            Integer index = semanticIndex.get(sem);
+            if (index != null)
+                return index;
+            if (sem instanceof SemanticContext.AND) {
+                for (SemanticContext opnd : ((SemanticContext.AND) sem).opnds)
+                    registerSemanticContext(opnd);
+            } else if (sem instanceof SemanticContext.OR) {
+                for (SemanticContext opnd : ((SemanticContext.OR) sem).opnds)
+                    registerSemanticContext(opnd);
+            }
+            semanticIndex.put(sem, semantics.size());
+            semantics.add(sem);
+            return semantics.size() - 1;
+        }
+
+        void writeContextEntry(PredictionContext ctx) throws IOException {
+            if (ctx instanceof EmptyPredictionContext)
+                out.writeByte(CTX_EMPTY);
+            else if (ctx instanceof SingletonPredictionContext) {
+                SingletonPredictionContext sctx = (SingletonPredictionContext) ctx;
+                out.writeByte(CTX_SINGLETON);
+                out.writeInt(contextIndexOf(sctx.parent));
+                out.writeInt(sctx.returnState);
+            } else if (ctx instanceof ArrayPredictionContext) {
+                ArrayPredictionContext actx = (ArrayPredictionContext) ctx;
+                out.writeByte(CTX_ARRAY);
+                out.writeInt(actx.returnStates.length);
+                for (int i = 0; i < actx.returnStates.length; i++) {
+                    out.writeInt(contextIndexOf(actx.parents[i]));
+                    out.writeInt(actx.returnStates[i]);
+                }
+            } else
+                throw new Error("unknown prediction context: " + ctx.getClass());
+        }
+
+        int contextIndexOf(PredictionContext ctx) {
+            return ctx == null ? NULL_INDEX : contextIndex.get(ctx);
+        }
+
+        void writeSemanticContextEntry(SemanticContext sem) throws IOException {
+            if (sem == SemanticContext.NONE)
+                out.writeByte(SEM_NONE);
+            else if (sem instanceof SemanticContext.Predicate) {
+                SemanticContext.Predicate p = (SemanticContext.Predicate) sem;
+                out.writeByte(SEM_PREDICATE);
+                out.writeInt(p.ruleIndex);
+                out.writeInt(p.predIndex);
+                out.writeBoolean(p.isCtxDependent);
+            } else if (sem instanceof SemanticContext.PrecedencePredicate) {
+                out.writeByte(SEM_PRECEDENCE);
+                out.writeInt(((SemanticContext.PrecedencePredicate) sem).precedence);
+            } else if (sem instanceof SemanticContext.AND || sem instanceof SemanticContext.OR) {
+                SemanticContext[] opnds = sem instanceof SemanticContext.AND ?
+                        ((SemanticContext.AND) sem).opnds : ((SemanticContext.OR) sem).opnds;
+                out.writeByte(sem instanceof SemanticContext.AND ? SEM_AND : SEM_OR);
+                out.writeInt(opnds.length);
+                for (SemanticContext opnd : opnds)
+                    out.writeInt(semanticIndex.get(opnd));
+            } else
+                throw new Error("unknown semantic context: " + sem.getClass());
+        }
+    }
+
+    static class Reader {
+        DataInputStream in;
+        ATN atn = getATN();
+        SemanticContext[] semantics;
+        PredictionContext[] contexts;
+        Field conflictingAltsField = getConflictingAltsField();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        boolean read() throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != getATNChecksum())
+                return false;
+            semantics = new SemanticContext[in.readInt()];
+            for (int i = 0; i < semantics.length; i++)
+                semantics[i] = readSemanticContextEntry();
+            contexts = new PredictionContext[in.readInt()];
+            for (int i = 0; i < contexts.length; i++)
+                contexts[i] = readContextEntry();
+
+            DFA[] decisionToDFA = getDecisionToDFA();
+            if (in.readInt() != decisionToDFA.length)
+                return false;
+            for (DFA dfa : decisionToDFA)
+                readDFA(dfa);
+            return true;
+        }
+
+        void readDFA(DFA dfa) throws IOException {
+            int n = in.readInt();
+            if (n == 0)
+                return;
+            DFAState[] states = new DFAState[n];
+            for (int i = 0; i < n; i++)
+                states[i] = readState();
+            DFAState[][] edges = new DFAState[n][];
+            for (int i = 0; i < n; i++) {
+                int len = in.readInt();
+                if (len == NULL_INDEX)
+                    continue;
+                edges[i] = new DFAState[len];
+                for (int j = 0; j < len; j++) {
+                    int index = in.readInt();
+                    if (index == ERROR_STATE_INDEX)
+                        edges[i][j] = ATNSimulator.ERROR;
+                    else if (index != NULL_INDEX)
+                        edges[i][j] = states[index];
+                }
+            }
+            int s0Index = in.readInt();
+
+            // Do not overwrite a DFA that has already been used.
+            synchronized (dfa.states) {
+                if (!dfa.states.isEmpty())
+                    return;
+                for (int i = 0; i < n; i++) {
+                    states[i].edges = edges[i];
+                    if (i != s0Index || !dfa.isPrecedenceDfa())
+                        dfa.states.put(states[i], states[i]);
+                }
+                if (s0Index == NULL_INDEX)
+                    return;
+                if (dfa.isPrecedenceDfa())
+                    dfa.s0.edges = edges[s0Index];
+                else
+                    dfa.s0 = states[s0Index];
+            }
+        }
+
+        DFAState readState() throws IOException {
+            int stateNumber = in.readInt();
+            boolean isAcceptState = in.readBoolean();
+            int prediction = in.readInt();
+            boolean requiresFullContext = in.readBoolean();
+            DFAState.PredPrediction[] predicates = null;
+            int npreds = in.readInt();
+            if (npreds != NULL_INDEX) {
+                predicates = new DFAState.PredPrediction[npreds];
+                for (int i = 0; i < npreds; i++) {
+                    SemanticContext pred = semantics[in.readInt()];
+                    predicates[i] = new DFAState.PredPrediction(pred, in.readInt());
+                }
+            }
+            DFAState s = new DFAState(readConfigSet());
+            s.stateNumber = stateNumber;
+            s.isAcceptState = isAcceptState;
+            s.prediction = prediction;
+            s.requiresFullContext = requiresFullContext;
+            s.predicates = predicates;
+            return s;
+        }
+
+        ATNConfigSet readConfigSet() throws IOException {
+            ATNConfigSet configs = new ATNConfigSet(in.readBoolean());
+            boolean readonly = in.readBoolean();
+            int uniqueAlt = in.readInt();
+            boolean hasSemanticContext = in.readBoolean();
+            boolean dipsIntoOuterContext = in.readBoolean();
+            BitSet conflictingAlts = null;
+            int nwords = in.readInt();
+            if (nwords != NULL_INDEX) {
+                long[] words = new long[nwords];
+                for (int i = 0; i < nwords; i++)
+                    words[i] = in.readLong();
+                conflictingAlts = BitSet.valueOf(words);
+            }
+            int nconfigs = in.readInt();
+            for (int i = 0; i < nconfigs; i++) {
+                int stateNumber = in.readInt();
+                int alt = in.readInt();
+                int ctx = in.readInt();
+                int reachesIntoOuterContext = in.readInt();
+                SemanticContext sem = semantics[in.readInt()];
+                ATNConfig c = new ATNConfig(atn.states.get(stateNumber), alt, ctx == NULL_INDEX ? null : contexts[ctx], sem);
+                c.reachesIntoOuterContext = reachesIntoOuterContext;
+                configs.add(c);
+            }
+            configs.uniqueAlt = uniqueAlt;
+            configs.hasSemanticContext = hasSemanticContext;
+            configs.dipsIntoOuterContext = dipsIntoOuterContext;
+            try {
+                conflictingAltsField.set(configs, conflictingAlts);
+            } catch (IllegalAccessException e) {
+                throw new Error(e);
+            }
+            if (readonly)
+                configs.setReadonly(true);
+            return configs;
+        }
+
+        PredictionContext readContextEntry() throws IOException {
+            switch (in.readByte()) {
+            case CTX_EMPTY:
+                return PredictionContext.EMPTY;
+            case CTX_SINGLETON: {
+                PredictionContext parent = contextAt(in.readInt());
+                return SingletonPredictionContext.create(parent, in.readInt());
+            }
+            case CTX_ARRAY: {
+                int n = in.readInt();
+                PredictionContext[] parents = new PredictionContext[n];
+                int[] returnStates = new int[n];
+                for (int i = 0; i < n; i++) {
+                    parents[i] = contextAt(in.readInt());
+                    returnStates[i] = in.readInt();
+                }
+                return new ArrayPredictionContext(parents, returnStates);
+            }
+            default:
+                throw new IOException("broken parser DFA cache");
+            }
+        }
+
+        PredictionContext contextAt(int index) {
+            return index == NULL_INDEX ? null : contexts[index];
+        }
+
+        SemanticContext readSemanticContextEntry() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+            case SEM_NONE:
+                return SemanticContext.NONE;
+            case SEM_PREDICATE: {
+                int ruleIndex = in.readInt();
+                int predIndex = in.readInt();
+                return new SemanticContext.Predicate(ruleIndex, predIndex, in.readBoolean());
+            }
+            case SEM_PRECEDENCE:
+                return new SemanticContext.PrecedencePredicate(in.readInt());
+            case SEM_AND:
+            case SEM_OR: {
+                // The constructors flatten nested operators, so folding
+                // the operands rebuilds the same operand set.
+                int n = in.readInt();
+                SemanticContext result = semantics[in.readInt()];
+                SemanticContext first = result;
+                for (int i = 1; i < n; i++) {
+                    SemanticContext opnd = semantics[in.readInt()];
+                    result = tag == SEM_AND ? new SemanticContext.AND(result, opnd) : new SemanticContext.OR(result, opnd);
+                }
+                if (n == 1)
+                    result = tag == SEM_AND ? new SemanticContext.AND(first, first) : new SemanticContext.OR(first, first);
+                return result;
+            }
+            default:
+                throw new IOException("broken parser DFA cache");
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ejsc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Benchmark of ParserDFACache.
+ *
+ *   java -cp compiler.jar ejsc.ParserDFACacheBenchmark [-rounds N] [-list FILE] file.js ...
+ *
+ * Parses a fixed corpus with empty DFAs (cold) and with DFAs loaded from
+ * a cache file (preloaded), and prints the parse throughput of both.  The
+ * cache file is created from the corpus itself beforehand.  Rounds after
+ * the first one are run with a warm JIT, so they show the effect of the
+ * DFAs alone; the first round is close to a one-shot CLI invocation.
+ *
+ * -list reads the names of the files from FILE, one per line; lines
+ * starting with # are ignored.  document/parser-benchmark-corpus.txt is
+ * the corpus used for the results below.
+ *
+ * Results with -rounds 3 (12494 lines; the cache file is 93 MB, and most
+ * of it comes from jquery.js):
+ *   round 0: cold 15010 ms  832 lines/s | preloaded 5054 ms 2472 lines/s (load 1981 ms)
+ *   round 1: cold 14142 ms  883 lines/s | preloaded 5523 ms 2262 lines/s (load 2027 ms)
+ *   round 2: cold 12351 ms 1012 lines/s | preloaded 4382 ms 2851 lines/s (load 1873 ms)
+ * Parsing with preloaded DFAs is about three times faster, or about twice
+ * including the load.
+ */
+public class ParserDFACacheBenchmark {
+    static long parseAll(List<String> files, Main.Info info) throws IOException {
+        long start = System.nanoTime();
+        for (String f : files)
+            Main.parseFile(f, info);
+        return System.nanoTime() - start;
+    }
+
+    static String throughput(long lines, long nanos) {
+        return String.format("%8.1f ms %10.0f lines/s", nanos / 1e6, lines / (nanos / 1e9));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rounds = 5;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rounds"))
+                rounds = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-list")) {
+                for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#"))
+                        files.add(line);
+                }
+            } else
+                files.add(args[i]);
+        }
+        if (files.isEmpty()) {
+            System.out.println("usage: ParserDFACacheBenchmark [-rounds N] [-list FILE] file.js ...");
+            return;
+        }
+        long lines = 0;
+        for (String f : files)
+            lines += Files.readAllLines(Paths.get(f)).size();
+        Main.Info info = new Main.Info();
+
+        File cache = File.createTempFile("ejsc-dfa", ".cache");
+        cache.deleteOnExit();
+        ParserDFACache.clear();
+        parseAll(files, info);
+        ParserDFACache.save(cache.getPath());
+        System.out.println("corpus: " + files.size() + " files, " + lines + " lines; cache: " + cache.length() + " bytes");
+
+        for (int round = 0; round < rounds; round++) {
+            ParserDFACache.clear();
+            long cold = parseAll(files, info);
+            ParserDFACache.clear();
+            long loadStart = System.nanoTime();
+            ParserDFACache.load(cache.getPath());
+            long load = System.nanoTime() - loadStart;
+            long preloaded = parseAll(files, info);
+            System.out.println("round " + round + ": cold " + throughput(lines, cold) +
+                    " | preloaded " + throughput(lines, preloaded) +
+                    String.format(" (load %.1f ms)", load / 1e6));
+        }
+    }
+}
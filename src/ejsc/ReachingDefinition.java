@@ -19,17 +19,43 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 public class ReachingDefinition {
-	HashMap<BCode, Set<BCode>> inMap = new HashMap<BCode, Set<BCode>>();
-	HashMap<BCode, Set<BCode>> outMap = new HashMap<BCode, Set<BCode>>();
+	ControlFlowGraph cfg;
+	BitVectorDataflow dataflow;
+	int[] definitions;  // instruction indices of the definitions
+	IdentityHashMap<Register, BitSet> defsOfRegister = new IdentityHashMap<Register, BitSet>();
 	
 	public Set<BCode> getReachingDefinitions(BCode bc) {
-		return inMap.get(bc);
+		BitSet reaching = dataflow.getIn(cfg.indexOf(bc));
+		Set<BCode> defs = new HashSet<BCode>();
+		for (int d = reaching.nextSetBit(0); d >= 0; d = reaching.nextSetBit(d + 1))
+			defs.add(cfg.getBCode(definitions[d]));
+		return defs;
+	}
+	
+	/* the only definition of r reaching bc, or null */
+	public BCode getUniqueReachingDefinition(BCode bc, Register r) {
+		BitSet defs = defsOfRegister.get(r);
+		if (defs == null)
+			return null;
+		BitSet reaching = dataflow.getIn(cfg.indexOf(bc));
+		int d = nextCommonBit(reaching, defs, 0);
+		if (d < 0 || nextCommonBit(reaching, defs, d + 1) >= 0)
+			return null;
+		return cfg.getBCode(definitions[d]);
+	}
+	
+	private static int nextCommonBit(BitSet a, BitSet b, int from) {
+		for (int d = b.nextSetBit(from); d >= 0; d = b.nextSetBit(d + 1))
+			if (a.get(d))
+				return d;
+		return -1;
 	}
 
 	public ReachingDefinition(List<BCode> bcodes) {
@@ -37,42 +63,40 @@ public class ReachingDefinition {
 	}
 	
 	public ReachingDefinition(ControlFlowGraph cfg) {
-		for (ControlFlowGraph.CFGNode n: cfg.getNodes()) {
-			BCode bc = n.getBCode();
-			inMap.put(bc, new HashSet<BCode>());
-			Set<BCode> out = new HashSet<BCode>();
-			if (bc.getDestRegister() != null)
-				out.add(bc);  // gen
-			outMap.put(bc,  out);
+		this.cfg = cfg;
+		int n = cfg.getNumberOfInstructions();
+		
+		/* number definitions and group them by destination register */
+		definitions = new int[n];
+		int nDefs = 0;
+		for (int i = 0; i < n; i++) {
+			Register dst = cfg.getBCode(i).getDestRegister();
+			if (dst == null)
+				continue;
+			BitSet defs = defsOfRegister.get(dst);
+			if (defs == null) {
+				defs = new BitSet();
+				defsOfRegister.put(dst, defs);
+			}
+			defs.set(nDefs);
+			definitions[nDefs++] = i;
 		}
 		
-		boolean fixPoint = false;
-		while (!fixPoint) {
-			fixPoint = true;
-			for (ControlFlowGraph.CFGNode n: cfg.getNodes()) {
-				BCode bc = n.getBCode();
-				/* in += Union pred(out) */
-				for (ControlFlowGraph.CFGNode pred: n.getPreds()) {
-					BCode predBC = pred.getBCode();
-					if (inMap.get(bc).addAll(outMap.get(predBC)))
-						fixPoint = false;
-				}
-				/* out += in - kill */
-				for (BCode inBC: inMap.get(bc)) {
-					if (inKillSet(bc, inBC))
-						continue;
-					if (outMap.get(bc).add(inBC))
-						fixPoint = false;
-				}
+		BitSet[] gen = new BitSet[n];
+		BitSet[] kill = new BitSet[n];
+		BitSet empty = new BitSet();
+		for (int i = 0, d = 0; i < n; i++) {
+			Register dst = cfg.getBCode(i).getDestRegister();
+			if (dst == null) {
+				gen[i] = empty;
+				kill[i] = empty;
+				continue;
 			}
+			gen[i] = new BitSet();
+			gen[i].set(d++);
+			kill[i] = defsOfRegister.get(dst);
 		}
-	}
-	
-	// return target \in Kill_{self}
-	private boolean inKillSet(BCode self, BCode target) {
-		Register cr = self.getDestRegister();
-		if (cr == null)
-			return false;
-		return cr == target.getDestRegister();
+		dataflow = new BitVectorDataflow(cfg, BitVectorDataflow.Direction.FORWARD,
+				BitVectorDataflow.Meet.UNION, nDefs, gen, kill);
 	}
 }
@@ -19,7 +19,6 @@
      Hideya Iwasaki, 2012-14
 */
 package ejsc;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -146,25 +145,14 @@ public class RegisterAssignment {
         }
     }
     
-    private void replaceRegisterField(BCode bc, Field f) throws IllegalArgumentException, IllegalAccessException {
-        Register r = (Register) f.get(bc);
-        if (r != null) {
-            RealRegister rr = assign.get(r);
-            if (rr == null)
-                throw new Error("internal error");
-            f.set(bc, rr);
-        }
-    }
-    
-    private void replaceRegisterArrayField(BCode bc, Field f) throws IllegalArgumentException, IllegalAccessException {
-        Register[] rs = (Register[]) f.get(bc);
-        for (int i = 0; i < rs.length; i++) {
-            Register r = rs[i];
+    private void replaceUses(BCode bc) {
+        for (int i = 0; i < bc.getNumberOfUses(); i++) {
+            Register r = bc.getUse(i);
             if (r != null) {
                 RealRegister rr = assign.get(r);
                 if (rr == null)
                     throw new Error("internal error");
-                rs[i] = rr;
+                bc.setUse(i, rr);
             }
         }
     }
@@ -175,7 +163,7 @@ public class RegisterAssignment {
             RealRegister rr = assign.get(r);
             if (rr == null)
                 throw new Error("internal error");
-            bc.dst = rr;
+            bc.setDestRegister(rr);
         }
     }
 
@@ -185,32 +173,22 @@ public class RegisterAssignment {
         
         for (BCode bcx: bcodes) {
             //System.out.println(showAssignment()+": "+lra.showRegs(lra.getLiveRegisters(bcx))+bcx);
-            try {
-                Class<? extends BCode> c = bcx.getClass();
-                for (Field f: c.getDeclaredFields()) {
-                    if (f.getType() == Register.class)
-                        replaceRegisterField(bcx, f);
-                    else if (f.getType() == Register[].class)
-                        replaceRegisterArrayField(bcx, f);
-                }
-                replaceDstRegister(bcx);
-                
-                if (removeMove) {
-                    if (bcx instanceof IMove) {
-                        IMove bc = (IMove) bcx;
-                        if (bc.src == bc.dst) {
-                            labels.addAll(bc.getLabels());
-                            continue;
-                        }
+            replaceUses(bcx);
+            replaceDstRegister(bcx);
+            
+            if (removeMove) {
+                if (bcx instanceof IMove) {
+                    IMove bc = (IMove) bcx;
+                    if (bc.src == bc.dst) {
+                        labels.addAll(bc.getLabels());
+                        continue;
                     }
                 }
-                bcx.addLabels(labels);
-                labels.clear();
-                
-                newBCodes.add(bcx);
-            } catch (Exception e) {
-                throw new Error(e);
             }
+            bcx.addLabels(labels);
+            labels.clear();
+            
+            newBCodes.add(bcx);
         }
 
         return newBCodes;
@@ -0,0 +1,163 @@
+package ejsc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Resolves variables before code generation.
+ *
+ * For each function, decides where its parameters and local variables
+ * live (frame, arguments or register) from the results of NewargsAnalyzer,
+ * and resolves each IASTIdentifier (and the variable of for-in) to a
+ * Binding, so that CodeGenerator does not search the scope chain.  Every
+ * name is resolved once per function; references to the same name share
+ * the Binding.
+ */
+class ScopeAnalyzer extends IASTBaseVisitor {
+    static class Binding {
+        static final int GLOBAL = -1;
+        // otherwise one of CodeGenerator.Environment.Location.IN_XXX
+        int locationType;
+        boolean isLocal;
+        int depth;
+        int idx;
+
+        Binding(int locationType, boolean isLocal, int depth, int idx) {
+            this.locationType = locationType;
+            this.isLocal = isLocal;
+            this.depth = depth;
+            this.idx = idx;
+        }
+    }
+
+    static final Binding GLOBAL = new Binding(Binding.GLOBAL, false, 0, 0);
+    static final Binding REGISTER = new Binding(CodeGenerator.Environment.Location.IN_REGISTER, true, 0, 0);
+
+    static class Scope {
+        Scope outer;
+        boolean hasFrame;
+        HashMap<String, Integer> frameIndex = new HashMap<String, Integer>();
+        HashMap<String, Integer> argumentsIndex = new HashMap<String, Integer>();
+        HashSet<String> registerVars = new HashSet<String>();
+        HashMap<String, Binding> resolved = new HashMap<String, Binding>();
+
+        Scope(Scope outer, List<String> frameLocals, List<String> argumentsVars, List<String> regLocals, boolean hasFrame) {
+            this.outer = outer;
+            this.hasFrame = hasFrame;
+            // the first one wins as List.indexOf
+            for (int i = frameLocals.size() - 1; i >= 0; i--)
+                frameIndex.put(frameLocals.get(i), i);
+            for (int i = argumentsVars.size() - 1; i >= 0; i--)
+                argumentsIndex.put(argumentsVars.get(i), i);
+            registerVars.addAll(regLocals);
+        }
+    }
+
+    Scope scope;
+
+    void analyze(IASTProgram node) {
+        node.accept(this);
+    }
+
+    Binding resolve(String name) {
+        Binding b = scope.resolved.get(name);
+        if (b != null)
+            return b;
+        if (scope.registerVars.contains(name))
+            b = REGISTER;
+        else {
+            int depth = 0;
+            boolean isLocal = true;
+            for (Scope s = scope; s != null; s = s.outer) {
+                Integer n;
+                if ((n = s.frameIndex.get(name)) != null) {
+                    b = new Binding(CodeGenerator.Environment.Location.IN_FRAME, isLocal, depth, n);
+                    break;
+                }
+                if ((n = s.argumentsIndex.get(name)) != null) {
+                    b = new Binding(CodeGenerator.Environment.Location.IN_ARGUMENTS, isLocal, depth, n);
+                    break;
+                }
+                if (s.hasFrame)
+                    depth++;
+                isLocal = false;
+            }
+            if (b == null)
+                b = GLOBAL;
+        }
+        scope.resolved.put(name, b);
+        return b;
+    }
+
+    @Override
+    public Object visitProgram(IASTProgram node) {
+        List<String> empty = new ArrayList<String>();
+        scope = new Scope(null, empty, empty, empty, true);
+        node.program.body.accept(this);
+        scope = null;
+        return null;
+    }
+
+    // precondition: node.params and node.locals are disjoint
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        List<String> frameLocals = new ArrayList<String>();
+        List<String> argumentsVars = new ArrayList<String>();
+        List<String> regLocals = new ArrayList<String>();
+
+        if (node.needArguments) {
+            argumentsVars.addAll(node.params);
+            frameLocals.add("arguments");
+        } else {
+            // PROSYM: no variables are in innerUsedLocals if needArguments == false
+            // G1: all variables are in innerUsedLocals
+            for (String var : node.params) {
+                if (node.innerUsedLocals == null || node.innerUsedLocals.contains(var))
+                    frameLocals.add(var);
+                else
+                    regLocals.add(var);
+            }
+        }
+        // PROSYM and G1: all variables are in innerUsedLocals
+        for (String var : node.locals) {
+            if (node.innerUsedLocals == null || node.innerUsedLocals.contains(var))
+                frameLocals.add(var);
+            else
+                regLocals.add(var);
+        }
+        node.frameLocals = frameLocals;
+        node.argumentsVars = argumentsVars;
+        node.regLocals = regLocals;
+
+        scope = new Scope(scope, frameLocals, argumentsVars, regLocals, node.needFrame);
+        node.body.accept(this);
+        scope = scope.outer;
+        return null;
+    }
+
+    // Statements that IASTGenerator does not support are null.  They are
+    // left to CodeGenerator to report.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitForInStatement(IASTForInStatement node) {
+        node.varBinding = resolve(node.var);
+        return super.visitForInStatement(node);
+    }
+
+    @Override
+    public Object visitIdentifier(IASTIdentifier node) {
+        if (node.id != null)
+            node.binding = resolve(node.id);
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package ejsc;
+
+/*
+ * Marks calls in tail position.
+ *
+ * A call is in tail position if its value is returned by a return
+ * statement directly, through either arm of a conditional expression,
+ * through the right operand of && or ||, or as the last expression of a
+ * sequence expression.  CodeGenerator compiles such a call into a tail
+ * call, which reuses the register window of the caller.  Calls inside
+ * try and with statements are not marked because the caller has work to
+ * do after the callee returns.  Constructor calls are never marked.
+ */
+class TailCallAnalyzer extends IASTBaseVisitor {
+    int nestedHandlers = 0;  // number of enclosing try and with statements
+
+    void analyze(IASTNode node) {
+        node.accept(this);
+    }
+
+    void markTail(IASTExpression node) {
+        if (node instanceof IASTCallExpression)
+            ((IASTCallExpression) node).isTail = true;
+        else if (node instanceof IASTTernaryExpression) {
+            IASTTernaryExpression cond = (IASTTernaryExpression) node;
+            markTail(cond.operands[1]);
+            markTail(cond.operands[2]);
+        } else if (node instanceof IASTBinaryExpression) {
+            IASTBinaryExpression bin = (IASTBinaryExpression) node;
+            if (bin.operator == IASTBinaryExpression.Operator.AND ||
+                    bin.operator == IASTBinaryExpression.Operator.OR)
+                markTail(bin.operands[1]);
+        } else if (node instanceof IASTSequenceExpression) {
+            IASTSequenceExpression seq = (IASTSequenceExpression) node;
+            markTail(seq.expressions.get(seq.expressions.size() - 1));
+        }
+    }
+
+    @Override
+    public Object visitFunctionExpression(IASTFunctionExpression node) {
+        int saved = nestedHandlers;
+        nestedHandlers = 0;
+        node.body.accept(this);
+        nestedHandlers = saved;
+        return null;
+    }
+
+    // Statements that IASTGenerator does not support are null.
+    @Override
+    public Object visitBlockStatement(IASTBlockStatement node) {
+        for (IASTStatement s : node.stmts) {
+            if (s != null)
+                s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(IASTReturnStatement node) {
+        if (node.value != null) {
+            node.value.accept(this);
+            if (nestedHandlers == 0)
+                markTail(node.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWithStatement(IASTWithStatement node) {
+        node.object.accept(this);
+        nestedHandlers++;
+        node.body.accept(this);
+        nestedHandlers--;
+        return null;
+    }
+
+    @Override
+    public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+        nestedHandlers++;
+        node.body.accept(this);
+        nestedHandlers--;
+        node.handler.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitTryFinallyStatement(IASTTryFinallyStatement node) {
+        nestedHandlers++;
+        node.body.accept(this);
+        nestedHandlers--;
+        node.finaliser.accept(this);
+        return null;
+    }
+}
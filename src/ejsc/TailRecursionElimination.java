@@ -0,0 +1,266 @@
+package ejsc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Turns self tail calls into jumps.
+ *
+ * If a function is bound to a variable that is never written again (see
+ * FunctionBindingAnalyzer), "return f(a1, ..., an)" in its body calls the
+ * function itself.  The body is wrapped in "for (;;) { body; return; }"
+ * and the return statement is replaced with assignments of the arguments
+ * to the parameters, resetting the locals to undefined, and a continue
+ * statement.  Return values through ?: and sequence expressions are also
+ * handled.
+ *
+ * Not applied to functions that use this or arguments, or whose
+ * parameters or locals are referred to by inner functions; those would
+ * observe the reuse of the frame.  Calls inside try and with statements
+ * are left as they are.
+ */
+class TailRecursionElimination {
+    // Not JavaScript identifiers, so that they do not clash with the program.
+    static final String LOOP_LABEL = "%tailrec";
+    static final String TEMP_PREFIX = "%arg";
+
+    void transform(IASTProgram program) {
+        FunctionBindingAnalyzer analyzer = new FunctionBindingAnalyzer();
+        analyzer.analyze(program);
+        for (Map.Entry<IASTFunctionExpression, FunctionBindingAnalyzer.Variable> e : analyzer.boundFunctions.entrySet())
+            new FunctionTransformer(e.getKey(), e.getValue().name).transform();
+    }
+
+    // Collects identifiers used in a function body.
+    static class UsageCollector extends IASTBaseVisitor {
+        HashSet<String> used = new HashSet<String>();
+        HashSet<String> usedByInnerFunctions = new HashSet<String>();
+        boolean usesThis = false;
+        int depth = 0;
+
+        void use(String name) {
+            used.add(name);
+            if (depth > 0)
+                usedByInnerFunctions.add(name);
+        }
+
+        @Override
+        public Object visitBlockStatement(IASTBlockStatement node) {
+            for (IASTStatement s : node.stmts) {
+                if (s != null)
+                    s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visitFunctionExpression(IASTFunctionExpression node) {
+            depth++;
+            node.body.accept(this);
+            depth--;
+            return null;
+        }
+
+        @Override
+        public Object visitThisExpression(IASTThisExpression node) {
+            if (depth == 0)
+                usesThis = true;
+            return null;
+        }
+
+        @Override
+        public Object visitIdentifier(IASTIdentifier node) {
+            use(node.id);
+            return null;
+        }
+
+        @Override
+        public Object visitForInStatement(IASTForInStatement node) {
+            use(node.var);
+            return super.visitForInStatement(node);
+        }
+
+        @Override
+        public Object visitTryCatchStatement(IASTTryCatchStatement node) {
+            use(node.param);
+            return super.visitTryCatchStatement(node);
+        }
+    }
+
+    static HashSet<String> usedNames(IASTNode node) {
+        UsageCollector c = new UsageCollector();
+        node.accept(c);
+        return c.used;
+    }
+
+    static class FunctionTransformer {
+        IASTFunctionExpression func;
+        String name;
+        HashSet<String> used;
+        int replaced = 0;
+
+        FunctionTransformer(IASTFunctionExpression func, String name) {
+            this.func = func;
+            this.name = name;
+        }
+
+        void transform() {
+            if (name.equals("arguments") || func.params.contains(name) || func.locals.contains(name))
+                return;
+            if (new HashSet<String>(func.params).size() != func.params.size())
+                return;
+            UsageCollector c = new UsageCollector();
+            func.body.accept(c);
+            if (c.usesThis || c.used.contains("arguments"))
+                return;
+            for (String var : c.usedByInnerFunctions) {
+                if (func.params.contains(var) || func.locals.contains(var))
+                    return;
+            }
+            used = c.used;
+
+            IASTStatement body = rewrite(func.body);
+            if (replaced == 0)
+                return;
+            List<IASTStatement> loopBody = new ArrayList<IASTStatement>();
+            loopBody.add(body);
+            loopBody.add(new IASTReturnStatement(null));
+            IASTForStatement loop = new IASTForStatement(null, null, null, new IASTBlockStatement(loopBody));
+            loop.label = LOOP_LABEL;
+            List<IASTStatement> stmts = new ArrayList<IASTStatement>();
+            stmts.add(loop);
+            func.body = new IASTBlockStatement(stmts);
+        }
+
+        boolean isSelfCall(IASTExpression e) {
+            if (!(e instanceof IASTCallExpression))
+                return false;
+            IASTExpression callee = ((IASTCallExpression) e).callee;
+            return callee instanceof IASTIdentifier && name.equals(((IASTIdentifier) callee).id);
+        }
+
+        boolean hasSelfTailCall(IASTExpression e) {
+            if (isSelfCall(e))
+                return true;
+            if (e instanceof IASTTernaryExpression) {
+                IASTTernaryExpression cond = (IASTTernaryExpression) e;
+                return hasSelfTailCall(cond.operands[1]) || hasSelfTailCall(cond.operands[2]);
+            }
+            if (e instanceof IASTSequenceExpression) {
+                List<IASTExpression> exps = ((IASTSequenceExpression) e).expressions;
+                return hasSelfTailCall(exps.get(exps.size() - 1));
+            }
+            return false;
+        }
+
+        // Returns the statement to replace s with.  Does not look into
+        // try and with statements.
+        IASTStatement rewrite(IASTStatement s) {
+            if (s instanceof IASTBlockStatement) {
+                List<IASTStatement> stmts = ((IASTBlockStatement) s).stmts;
+                for (int i = 0; i < stmts.size(); i++) {
+                    if (stmts.get(i) != null)
+                        stmts.set(i, rewrite(stmts.get(i)));
+                }
+            } else if (s instanceof IASTReturnStatement) {
+                IASTExpression value = ((IASTReturnStatement) s).value;
+                if (value != null && hasSelfTailCall(value))
+                    return rewriteReturn(value);
+            } else if (s instanceof IASTIfStatement) {
+                IASTIfStatement ifStmt = (IASTIfStatement) s;
+                ifStmt.consequent = rewrite(ifStmt.consequent);
+                if (ifStmt.alternate != null)
+                    ifStmt.alternate = rewrite(ifStmt.alternate);
+            } else if (s instanceof IASTSwitchStatement) {
+                for (IASTSwitchStatement.CaseClause c : ((IASTSwitchStatement) s).cases)
+                    c.consequent = rewrite(c.consequent);
+            } else if (s instanceof IASTForStatement) {
+                IASTForStatement loop = (IASTForStatement) s;
+                loop.body = rewrite(loop.body);
+            } else if (s instanceof IASTWhileStatement) {
+                IASTWhileStatement loop = (IASTWhileStatement) s;
+                loop.body = rewrite(loop.body);
+            } else if (s instanceof IASTDoWhileStatement) {
+                IASTDoWhileStatement loop = (IASTDoWhileStatement) s;
+                loop.body = rewrite(loop.body);
+            } else if (s instanceof IASTForInStatement) {
+                IASTForInStatement loop = (IASTForInStatement) s;
+                loop.body = rewrite(loop.body);
+            }
+            return s;
+        }
+
+        // return value;
+        IASTStatement rewriteReturn(IASTExpression value) {
+            if (isSelfCall(value))
+                return jump((IASTCallExpression) value);
+            if (value instanceof IASTTernaryExpression) {
+                IASTTernaryExpression cond = (IASTTernaryExpression) value;
+                return new IASTIfStatement(cond.operands[0],
+                        rewriteReturn(cond.operands[1]), rewriteReturn(cond.operands[2]));
+            }
+            if (value instanceof IASTSequenceExpression) {
+                List<IASTExpression> exps = ((IASTSequenceExpression) value).expressions;
+                if (exps.size() > 1) {
+                    List<IASTStatement> stmts = new ArrayList<IASTStatement>();
+                    stmts.add(new IASTExpressionStatement(
+                            new IASTSequenceExpression(new ArrayList<IASTExpression>(exps.subList(0, exps.size() - 1)))));
+                    stmts.add(rewriteReturn(exps.get(exps.size() - 1)));
+                    return new IASTBlockStatement(stmts);
+                }
+                return rewriteReturn(exps.get(0));
+            }
+            return new IASTReturnStatement(value);
+        }
+
+        static IASTStatement assign(String var, IASTExpression value) {
+            return new IASTExpressionStatement(new IASTBinaryExpression(
+                    IASTBinaryExpression.Operator.ASSIGN, new IASTIdentifier(var), value));
+        }
+
+        // Arguments are evaluated from left to right before any parameter
+        // is changed.  An argument is assigned to its parameter directly
+        // unless a later argument refers to the parameter.
+        IASTStatement jump(IASTCallExpression call) {
+            replaced++;
+            List<IASTExpression> args = call.arguments;
+            List<String> params = func.params;
+            List<IASTStatement> stmts = new ArrayList<IASTStatement>();
+            List<IASTStatement> deferred = new ArrayList<IASTStatement>();
+            for (int i = 0; i < args.size(); i++) {
+                IASTExpression arg = args.get(i);
+                if (i >= params.size()) {
+                    stmts.add(new IASTExpressionStatement(arg));
+                    continue;
+                }
+                String param = params.get(i);
+                boolean referredLater = false;
+                for (int j = i + 1; j < args.size(); j++) {
+                    if (usedNames(args.get(j)).contains(param))
+                        referredLater = true;
+                }
+                if (arg instanceof IASTIdentifier && ((IASTIdentifier) arg).id.equals(param))
+                    continue;
+                if (referredLater) {
+                    String temp = TEMP_PREFIX + i;
+                    if (!func.locals.contains(temp))
+                        func.locals.add(temp);
+                    stmts.add(assign(temp, arg));
+                    deferred.add(assign(param, new IASTIdentifier(temp)));
+                } else
+                    stmts.add(assign(param, arg));
+            }
+            stmts.addAll(deferred);
+            for (int i = args.size(); i < params.size(); i++)
+                stmts.add(assign(params.get(i), new IASTUndefinedLiteral()));
+            for (String local : func.locals) {
+                if (used.contains(local))
+                    stmts.add(assign(local, new IASTUndefinedLiteral()));
+            }
+            stmts.add(new IASTContinueStatement(LOOP_LABEL));
+            return new IASTBlockStatement(stmts);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+   ESTreeJsonReader.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Takafumi Kataoka, 2017-18
+     Tomoharu Ugawa, 2017-18
+     Hideya Iwasaki, 2017-18
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc.ast_node;
+
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+
+import ejsc.ast_node.Node.*;
+
+/*
+ * Builds ESTree nodes from ESTree JSON, i.e., the reverse of getEsTree().
+ * The input is read with a streaming parser and each node is built as
+ * soon as its JSON object is closed, so no JSON tree is materialised.
+ * Properties that ejsc does not use (raw, range, sourceType, ...) are
+ * ignored.  loc is used for the source location if it is present.
+ */
+public class ESTreeJsonReader {
+    JsonParser parser;
+
+    public ESTreeJsonReader(Reader reader) {
+        parser = Json.createParser(reader);
+    }
+
+    public Program read() {
+        if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT)
+            throw new Error("ESTree JSON: Program expected");
+        Object program = readObject();
+        parser.close();
+        if (!(program instanceof Program))
+            throw new Error("ESTree JSON: Program expected");
+        return (Program) program;
+    }
+
+    Object readValue(JsonParser.Event event) {
+        switch (event) {
+        case START_OBJECT:
+            return readObject();
+        case START_ARRAY: {
+            List<Object> list = new ArrayList<Object>();
+            JsonParser.Event e;
+            while ((e = parser.next()) != JsonParser.Event.END_ARRAY)
+                list.add(readValue(e));
+            return list;
+        }
+        case VALUE_STRING:
+            return parser.getString();
+        case VALUE_NUMBER:
+            return parser.getBigDecimal();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw new Error("ESTree JSON: unexpected " + event);
+        }
+    }
+
+    // Returns a Node if the object has a type, or the map of its
+    // properties otherwise (loc, regex).
+    Object readObject() {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        JsonParser.Event e;
+        while ((e = parser.next()) != JsonParser.Event.END_OBJECT) {
+            String key = parser.getString();
+            fields.put(key, readValue(parser.next()));
+        }
+        if (!fields.containsKey(Node.KEY_TYPE))
+            return fields;
+        Node node = createNode((String) fields.get(Node.KEY_TYPE), fields);
+        Object loc = fields.get(Node.KEY_LOC);
+        if (loc instanceof Map)
+            setSourceLocation(node, (Map<?, ?>) loc);
+        return node;
+    }
+
+    void setSourceLocation(Node node, Map<?, ?> loc) {
+        Map<?, ?> start = (Map<?, ?>) loc.get(Node.KEY_START);
+        Map<?, ?> end = (Map<?, ?>) loc.get(Node.KEY_END);
+        node.setSourceLocation((String) loc.get(Node.KEY_SOURCE),
+                ((BigDecimal) start.get(Node.KEY_LINE)).intValue(),
+                ((BigDecimal) start.get(Node.KEY_COLUMN)).intValue(),
+                ((BigDecimal) end.get(Node.KEY_LINE)).intValue(),
+                ((BigDecimal) end.get(Node.KEY_COLUMN)).intValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> List<T> list(Map<String, Object> f, String key) {
+        return (List<T>) f.get(key);
+    }
+
+    static String string(Map<String, Object> f, String key) {
+        return (String) f.get(key);
+    }
+
+    static boolean bool(Map<String, Object> f, String key) {
+        return Boolean.TRUE.equals(f.get(key));
+    }
+
+    Node createNode(String type, Map<String, Object> f) {
+        switch (type) {
+        case "Program":
+            return new Program(ESTreeJsonReader.<IStatement>list(f, Node.KEY_BODY));
+        case "Identifier":
+            return new Identifier(string(f, Node.KEY_NAME));
+        case "Literal":
+            return createLiteral(f);
+        case "ExpressionStatement":
+            return new ExpressionStatement((IExpression) f.get(Node.KEY_EXPRESSION));
+        case "BlockStatement":
+            return new BlockStatement(ESTreeJsonReader.<IStatement>list(f, Node.KEY_BODY));
+        case "EmptyStatement":
+            return new EmptyStatement();
+        case "DebuggerStatement":
+            return new DebuggerStatement();
+        case "WithStatement":
+            return new WithStatement((IExpression) f.get(Node.KEY_OBJECT), (IStatement) f.get(Node.KEY_BODY));
+        case "ReturnStatement":
+            return new ReturnStatement((IExpression) f.get(Node.KEY_ARGUMENT));
+        case "LabeledStatement":
+            return new LabeledStatement((IIdentifier) f.get(Node.KEY_LABEL), (IStatement) f.get(Node.KEY_BODY));
+        case "BreakStatement":
+            return new BreakStatement((IIdentifier) f.get(Node.KEY_LABEL));
+        case "ContinueStatement":
+            return new ContinueStatement((IIdentifier) f.get(Node.KEY_LABEL));
+        case "IfStatement":
+            return new IfStatement((IExpression) f.get(Node.KEY_TEST),
+                    (IStatement) f.get(Node.KEY_CONSEQUENT), (IStatement) f.get(Node.KEY_ALTERNATE));
+        case "SwitchStatement":
+            return new SwitchStatement((IExpression) f.get(Node.KEY_DISCRIMINANT),
+                    ESTreeJsonReader.<ISwitchCase>list(f, Node.KEY_CASES));
+        case "SwitchCase":
+            return new SwitchCase((IExpression) f.get(Node.KEY_TEST),
+                    ESTreeJsonReader.<IStatement>list(f, Node.KEY_CONSEQUENT));
+        case "ThrowStatement":
+            return new ThrowStatement((IExpression) f.get(Node.KEY_ARGUMENT));
+        case "TryStatement":
+            return new TryStatement((IBlockStatement) f.get(Node.KEY_BLOCK),
+                    (ICatchClause) f.get(Node.KEY_HANDLER), (IBlockStatement) f.get(Node.KEY_FINALIZER));
+        case "CatchClause":
+            return new CatchClause((IPattern) f.get(Node.KEY_PARAM), (IBlockStatement) f.get(Node.KEY_BODY));
+        case "WhileStatement":
+            return new WhileStatement((IExpression) f.get(Node.KEY_TEST), (IStatement) f.get(Node.KEY_BODY));
+        case "DoWhileStatement":
+            return new DoWhileStatement((IStatement) f.get(Node.KEY_BODY), (IExpression) f.get(Node.KEY_TEST));
+        case "ForStatement": {
+            Object init = f.get(Node.KEY_INIT);
+            IExpression test = (IExpression) f.get(Node.KEY_TEST);
+            IExpression update = (IExpression) f.get(Node.KEY_UPDATE);
+            IStatement body = (IStatement) f.get(Node.KEY_BODY);
+            if (init instanceof IVariableDeclaration)
+                return new ForStatement((IVariableDeclaration) init, test, update, body);
+            else
+                return new ForStatement((IExpression) init, test, update, body);
+        }
+        case "ForInStatement": {
+            Object left = f.get(Node.KEY_LEFT);
+            IExpression right = (IExpression) f.get(Node.KEY_RIGHT);
+            IStatement body = (IStatement) f.get(Node.KEY_BODY);
+            if (left instanceof IVariableDeclaration)
+                return new ForInStatement((IVariableDeclaration) left, right, body);
+            else
+                return new ForInStatement((IPattern) left, right, body);
+        }
+        case "FunctionDeclaration":
+            return new FunctionDeclaration((IIdentifier) f.get(Node.KEY_ID),
+                    ESTreeJsonReader.<IPattern>list(f, Node.KEY_PARAMS), (IBlockStatement) f.get(Node.KEY_BODY));
+        case "VariableDeclaration":
+            if (!"var".equals(f.get(Node.KEY_KIND)))
+                throw new Error("ESTree JSON: unsupported declaration kind: " + f.get(Node.KEY_KIND));
+            return new VariableDeclaration(ESTreeJsonReader.<IVariableDeclarator>list(f, Node.KEY_DECLARATIONS));
+        case "VariableDeclarator":
+            return new VariableDeclarator((IPattern) f.get(Node.KEY_ID), (IExpression) f.get(Node.KEY_INIT));
+        case "ThisExpression":
+            return new ThisExpression();
+        case "ArrayExpression":
+            return new ArrayExpression(ESTreeJsonReader.<IExpression>list(f, Node.KEY_ELEMENTS));
+        case "ObjectExpression":
+            return new ObjectExpression(ESTreeJsonReader.<IProperty>list(f, Node.KEY_PROPERTIES));
+        case "Property": {
+            Object key = f.get(Node.KEY_KEY);
+            IExpression value = (IExpression) f.get(Node.KEY_VALUE);
+            String kind = string(f, Node.KEY_KIND);
+            if (key instanceof IIdentifier)
+                return new Property((IIdentifier) key, value, kind);
+            else
+                return new Property((ILiteral) key, value, kind);
+        }
+        case "FunctionExpression":
+            return new FunctionExpression((IIdentifier) f.get(Node.KEY_ID),
+                    ESTreeJsonReader.<IPattern>list(f, Node.KEY_PARAMS), (IBlockStatement) f.get(Node.KEY_BODY));
+        case "UnaryExpression":
+            return new UnaryExpression(string(f, Node.KEY_OPERATOR), bool(f, Node.KEY_PREFIX),
+                    (IExpression) f.get(Node.KEY_ARGUMENT));
+        case "UpdateExpression":
+            return new UpdateExpression(string(f, Node.KEY_OPERATOR), bool(f, Node.KEY_PREFIX),
+                    (IExpression) f.get(Node.KEY_ARGUMENT));
+        case "BinaryExpression":
+            return new BinaryExpression(string(f, Node.KEY_OPERATOR),
+                    (IExpression) f.get(Node.KEY_LEFT), (IExpression) f.get(Node.KEY_RIGHT));
+        case "AssignmentExpression":
+            // ASTGenerator always takes the left hand side as an expression.
+            return new AssignmentExpression(string(f, Node.KEY_OPERATOR),
+                    (IExpression) f.get(Node.KEY_LEFT), (IExpression) f.get(Node.KEY_RIGHT));
+        case "LogicalExpression":
+            return new LogicalExpression(string(f, Node.KEY_OPERATOR),
+                    (IExpression) f.get(Node.KEY_LEFT), (IExpression) f.get(Node.KEY_RIGHT));
+        case "MemberExpression":
+            return new MemberExpression((IExpression) f.get(Node.KEY_OBJECT),
+                    (IExpression) f.get(Node.KEY_PROPERTY), bool(f, Node.KEY_COMPUTED));
+        case "ConditionalExpression":
+            return new ConditionalExpression((IExpression) f.get(Node.KEY_TEST),
+                    (IExpression) f.get(Node.KEY_CONSEQUENT), (IExpression) f.get(Node.KEY_ALTERNATE));
+        case "CallExpression":
+            return new CallExpression((IExpression) f.get(Node.KEY_CALLEE),
+                    ESTreeJsonReader.<IExpression>list(f, Node.KEY_ARGUMENTS));
+        case "NewExpression":
+            return new NewExpression((IExpression) f.get(Node.KEY_CALLEE),
+                    ESTreeJsonReader.<IExpression>list(f, Node.KEY_ARGUMENTS));
+        case "SequenceExpression":
+            return new SequenceExpression(ESTreeJsonReader.<IExpression>list(f, Node.KEY_EXPRESSIONS));
+        default:
+            throw new Error("ESTree JSON: unsupported node type: " + type);
+        }
+    }
+
+    Literal createLiteral(Map<String, Object> f) {
+        Object regex = f.get(Node.KEY_REGEX);
+        if (regex instanceof Map) {
+            // Same as a regular expression literal in the source.
+            Map<?, ?> r = (Map<?, ?>) regex;
+            return new Literal("/" + r.get(Node.KEY_PATTERN) + "/" + r.get(Node.KEY_FLAGS));
+        }
+        Object value = f.get(Node.KEY_VALUE);
+        if (value instanceof String)
+            return Literal.createStringLiteral((String) value);
+        else if (value instanceof Boolean)
+            return new Literal(((Boolean) value).booleanValue());
+        else if (value instanceof BigDecimal) {
+            double d = ((BigDecimal) value).doubleValue();
+            return new Literal(d, d != Math.rint(d));
+        } else
+            return new Literal();
+    }
+}
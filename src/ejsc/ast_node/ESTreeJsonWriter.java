@@ -0,0 +1,465 @@
+/*
+   ESTreeJsonWriter.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Takafumi Kataoka, 2017-18
+     Tomoharu Ugawa, 2017-18
+     Hideya Iwasaki, 2017-18
+
+   The eJS Project is the successor of the SSJS Project at the University of
+   Electro-communications, which was contributed by the following members.
+
+     Sho Takada, 2012-13
+     Akira Tanimura, 2012-13
+     Akihiro Urushihara, 2013-14
+     Ryota Fujii, 2013-14
+     Tomoharu Ugawa, 2012-14
+     Hideya Iwasaki, 2012-14
+*/
+package ejsc.ast_node;
+
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import ejsc.ast_node.Node.*;
+
+/*
+ * Writes ESTree JSON to a stream while walking the tree.  The output is
+ * the same as getEsTree().toString(), but no JsonObject is built, so the
+ * memory used is proportional to the depth of the tree.
+ */
+public class ESTreeJsonWriter extends ESTreeBaseVisitor<Void> {
+    JsonGenerator gen;
+    String key;  // key of the node to be written next, or null in an array
+
+    public ESTreeJsonWriter(Writer writer) {
+        gen = Json.createGenerator(writer);
+    }
+
+    // Write the tree.  The writer is flushed but not closed.
+    public void write(INode node) {
+        key = null;
+        node.accept(this);
+        gen.flush();
+    }
+
+    void writeNode(String key, INode node) {
+        this.key = key;
+        node.accept(this);
+    }
+
+    void writeNodeOrNull(String key, INode node) {
+        if (node != null)
+            writeNode(key, node);
+        else
+            gen.writeNull(key);
+    }
+
+    void writeNodes(String key, List<? extends INode> nodes) {
+        gen.writeStartArray(key);
+        for (INode node : nodes) {
+            if (node != null) {
+                this.key = null;
+                node.accept(this);
+            } else
+                gen.writeNull();
+        }
+        gen.writeEnd();
+    }
+
+    void begin(String type) {
+        if (key == null)
+            gen.writeStartObject();
+        else
+            gen.writeStartObject(key);
+        gen.write(Node.KEY_TYPE, type);
+    }
+
+    Void end() {
+        gen.writeEnd();
+        return null;
+    }
+
+    @Override
+    protected Void visitProgram(Program node) {
+        begin("Program");
+        writeNodes(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitBlockStatement(BlockStatement node) {
+        begin("BlockStatement");
+        writeNodes(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitFunction(Function node) {
+        begin("Function");
+        writeNodes(Node.KEY_PARAMS, node.params);
+        writeNode(Node.KEY_BODY, node.body);
+        writeNodeOrNull(Node.KEY_ID, node.id);
+        return end();
+    }
+
+    @Override
+    protected Void visitFunctionDeclaration(FunctionDeclaration node) {
+        begin("FunctionDeclaration");
+        writeNode(Node.KEY_ID, node.id);
+        writeNodes(Node.KEY_PARAMS, node.params);
+        writeNode(Node.KEY_BODY, node.body);
+        return end();
+    }
+
+    @Override
+    protected Void visitVariableDeclaration(VariableDeclaration node) {
+        begin("VariableDeclaration");
+        writeNodes(Node.KEY_DECLARATIONS, node.getDeclarations());
+        gen.write(Node.KEY_KIND, node.getKind());
+        return end();
+    }
+
+    @Override
+    protected Void visitVariableDeclarator(VariableDeclarator node) {
+        begin("VariableDeclarator");
+        writeNode(Node.KEY_ID, node.getId());
+        writeNodeOrNull(Node.KEY_INIT, node.getInit());
+        return end();
+    }
+
+    @Override
+    protected Void visitIfStatement(IfStatement node) {
+        begin("IfStatement");
+        writeNode(Node.KEY_TEST, node.getTest());
+        writeNode(Node.KEY_CONSEQUENT, node.getConsequent());
+        writeNodeOrNull(Node.KEY_ALTERNATE, node.getAlternate());
+        return end();
+    }
+
+    @Override
+    protected Void visitForStatement(ForStatement node) {
+        begin("ForStatement");
+        if (node.initType == ForStatement.InitType.VAR_DECL)
+            writeNode(Node.KEY_INIT, node.varDeclInit);
+        else if (node.initType == ForStatement.InitType.EXPRESSION)
+            writeNode(Node.KEY_INIT, node.expressionInit);
+        else
+            gen.writeNull(Node.KEY_INIT);
+        writeNodeOrNull(Node.KEY_TEST, node.test);
+        writeNodeOrNull(Node.KEY_UPDATE, node.update);
+        writeNodeOrNull(Node.KEY_BODY, node.body);
+        return end();
+    }
+
+    @Override
+    protected Void visitWhileStatement(WhileStatement node) {
+        begin("WhileStatement");
+        writeNode(Node.KEY_TEST, node.getTest());
+        writeNode(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitDoWhileStatement(DoWhileStatement node) {
+        begin("DoWhileStatement");
+        writeNode(Node.KEY_BODY, node.getBody());
+        writeNode(Node.KEY_TEST, node.getTest());
+        return end();
+    }
+
+    @Override
+    protected Void visitForInStatement(ForInStatement node) {
+        begin("ForInStatement");
+        if (node.initType == ForInStatement.InitType.VAR_DECL)
+            writeNode(Node.KEY_LEFT, node.varDeclLeft);
+        else if (node.initType == ForInStatement.InitType.PATTERN)
+            writeNode(Node.KEY_LEFT, node.patternLeft);
+        else
+            gen.writeNull(Node.KEY_LEFT);
+        writeNode(Node.KEY_RIGHT, node.right);
+        writeNode(Node.KEY_BODY, node.body);
+        return end();
+    }
+
+    @Override
+    protected Void visitSwitchStatement(SwitchStatement node) {
+        begin("SwitchStatement");
+        writeNode(Node.KEY_DISCRIMINANT, node.getDiscriminant());
+        writeNodes(Node.KEY_CASES, node.getCases());
+        return end();
+    }
+
+    @Override
+    protected Void visitSwitchCase(SwitchCase node) {
+        begin("SwitchCase");
+        writeNodeOrNull(Node.KEY_TEST, node.test);
+        writeNodes(Node.KEY_CONSEQUENT, node.consequent);
+        return end();
+    }
+
+    @Override
+    protected Void visitBreakStatement(BreakStatement node) {
+        begin("BreakStatement");
+        writeNodeOrNull(Node.KEY_LABEL, node.getLabel());
+        return end();
+    }
+
+    @Override
+    protected Void visitContinueStatement(ContinueStatement node) {
+        begin("ContinueStatement");
+        writeNodeOrNull(Node.KEY_LABEL, node.getLabel());
+        return end();
+    }
+
+    @Override
+    protected Void visitReturnStatement(ReturnStatement node) {
+        begin("ReturnStatement");
+        writeNodeOrNull(Node.KEY_ARGUMENT, node.getArgument());
+        return end();
+    }
+
+    @Override
+    protected Void visitTryStatement(TryStatement node) {
+        begin("TryStatement");
+        writeNode(Node.KEY_BLOCK, node.block);
+        writeNodeOrNull(Node.KEY_HANDLER, node.handler);
+        writeNodeOrNull(Node.KEY_FINALIZER, node.finalizer);
+        return end();
+    }
+
+    @Override
+    protected Void visitCatchClause(CatchClause node) {
+        begin("CatchClause");
+        writeNode(Node.KEY_PARAM, node.getParam());
+        writeNode(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitThrowStatement(ThrowStatement node) {
+        begin("ThrowStatement");
+        writeNode(Node.KEY_ARGUMENT, node.getArgument());
+        return end();
+    }
+
+    @Override
+    protected Void visitLabeledStatement(LabeledStatement node) {
+        begin("LabeledStatement");
+        writeNode(Node.KEY_LABEL, node.getLabel());
+        writeNode(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitWithStatement(WithStatement node) {
+        begin("WithStatement");
+        writeNode(Node.KEY_OBJECT, node.getObject());
+        writeNode(Node.KEY_BODY, node.getBody());
+        return end();
+    }
+
+    @Override
+    protected Void visitExpressionStatement(ExpressionStatement node) {
+        begin("ExpressionStatement");
+        writeNode(Node.KEY_EXPRESSION, node.getExpression());
+        return end();
+    }
+
+    @Override
+    protected Void visitEmptyStatement(EmptyStatement node) {
+        begin("EmptyStatement");
+        return end();
+    }
+
+    @Override
+    protected Void visitDebuggerStatement(DebuggerStatement node) {
+        begin("DebuggerStatement");
+        return end();
+    }
+
+    @Override
+    protected Void visitFunctionExpression(FunctionExpression node) {
+        begin("FunctionExpression");
+        writeNodes(Node.KEY_PARAMS, node.params);
+        writeNodeOrNull(Node.KEY_ID, node.id);
+        writeNodeOrNull(Node.KEY_BODY, node.body);
+        return end();
+    }
+
+    @Override
+    protected Void visitArrayExpression(ArrayExpression node) {
+        begin("ArrayExpression");
+        if (node.elements == null)
+            gen.writeNull(Node.KEY_ELEMENTS);
+        else
+            writeNodes(Node.KEY_ELEMENTS, node.elements);
+        return end();
+    }
+
+    @Override
+    protected Void visitObjectExpression(ObjectExpression node) {
+        begin("ObjectExpression");
+        if (node.properties == null)
+            gen.writeNull(Node.KEY_ELEMENTS);  // same as getEsTree()
+        else
+            writeNodes(Node.KEY_PROPERTIES, node.properties);
+        return end();
+    }
+
+    @Override
+    protected Void visitProperty(Property node) {
+        begin("Property");
+        if (node.keyType == Property.KeyType.LITERAL)
+            writeNode(Node.KEY_KEY, node.literalKey);
+        else if (node.keyType == Property.KeyType.IDENTIFIER)
+            writeNode(Node.KEY_KEY, node.identifierKey);
+        writeNode(Node.KEY_VALUE, node.value);
+        gen.write(Node.KEY_KIND, node.kind);
+        return end();
+    }
+
+    @Override
+    protected Void visitSequenceExpression(SequenceExpression node) {
+        begin("SequenceExpression");
+        if (node.expression == null)
+            gen.writeNull(Node.KEY_EXPRESSIONS);
+        else
+            writeNodes(Node.KEY_EXPRESSIONS, node.expression);
+        return end();
+    }
+
+    @Override
+    protected Void visitThisExpression(ThisExpression node) {
+        begin("ThisExpression");
+        return end();
+    }
+
+    @Override
+    protected Void visitAssignmentExpression(AssignmentExpression node) {
+        begin("AssignmentExpression");
+        gen.write(Node.KEY_OPERATOR, node.operator.toString());
+        if (node.leftNodeType == AssignmentExpression.LeftNodeType.EXPRESSION)
+            writeNode(Node.KEY_LEFT, node.expLeft);
+        else if (node.leftNodeType == AssignmentExpression.LeftNodeType.PATTERN)
+            writeNode(Node.KEY_LEFT, node.patternLeft);
+        writeNode(Node.KEY_RIGHT, node.right);
+        return end();
+    }
+
+    @Override
+    protected Void visitUnaryExpression(UnaryExpression node) {
+        begin("UnaryExpression");
+        gen.write(Node.KEY_OPERATOR, node.operator.toString());
+        writeNode(Node.KEY_ARGUMENT, node.argument);
+        gen.write(Node.KEY_PREFIX, node.prefix);
+        return end();
+    }
+
+    @Override
+    protected Void visitBinaryExpression(BinaryExpression node) {
+        begin("BinaryExpression");
+        gen.write(Node.KEY_OPERATOR, node.operator.toString());
+        writeNode(Node.KEY_LEFT, node.left);
+        writeNode(Node.KEY_RIGHT, node.right);
+        return end();
+    }
+
+    @Override
+    protected Void visitConditionalExpression(ConditionalExpression node) {
+        begin("ConditionalExpression");
+        writeNode(Node.KEY_TEST, node.getTest());
+        writeNode(Node.KEY_CONSEQUENT, node.getConsequent());
+        writeNode(Node.KEY_ALTERNATE, node.getAlternate());
+        return end();
+    }
+
+    @Override
+    protected Void visitUpdateExpression(UpdateExpression node) {
+        begin("UpdateExpression");
+        gen.write(Node.KEY_OPERATOR, node.operator.toString());
+        writeNode(Node.KEY_ARGUMENT, node.argument);
+        gen.write(Node.KEY_PREFIX, node.prefix);
+        return end();
+    }
+
+    @Override
+    protected Void visitLogicalExpression(LogicalExpression node) {
+        begin("LogicalExpression");
+        gen.write(Node.KEY_OPERATOR, node.operator.toString());
+        writeNode(Node.KEY_LEFT, node.left);
+        writeNode(Node.KEY_RIGHT, node.right);
+        return end();
+    }
+
+    @Override
+    protected Void visitCallExpression(CallExpression node) {
+        begin("CallExpression");
+        writeNode(Node.KEY_CALLEE, node.callee);
+        if (node.arguments == null) {
+            gen.writeStartArray(Node.KEY_ARGUMENTS);
+            gen.writeEnd();
+        } else
+            writeNodes(Node.KEY_ARGUMENTS, node.arguments);
+        return end();
+    }
+
+    @Override
+    protected Void visitNewExpression(NewExpression node) {
+        begin("NewExpression");
+        writeNode(Node.KEY_CALLEE, node.callee);
+        if (node.arguments == null) {
+            gen.writeStartArray(Node.KEY_ARGUMENTS);
+            gen.writeEnd();
+        } else
+            writeNodes(Node.KEY_ARGUMENTS, node.arguments);
+        return end();
+    }
+
+    @Override
+    protected Void visitMemberExpression(MemberExpression node) {
+        begin("MemberExpression");
+        writeNode(Node.KEY_OBJECT, node.object);
+        writeNode(Node.KEY_PROPERTY, node.property);
+        gen.write(Node.KEY_COMPUTED, node.computed);
+        return end();
+    }
+
+    @Override
+    protected Void visitLiteral(Literal node) {
+        begin("Literal");
+        switch (node.literalType) {
+        case STRING:
+            gen.write(Node.KEY_VALUE, node.strVal);
+            break;
+        case BOOLEAN:
+            gen.write(Node.KEY_VALUE, node.boolVal);
+            break;
+        case NUMBER:
+            // JsonObjectBuilder converts a double in this way.
+            gen.write(Node.KEY_VALUE, BigDecimal.valueOf(node.numberVal));
+            break;
+        case REG_EXP:
+            gen.write(Node.KEY_VALUE, node.regExpVal);
+            break;
+        case NULL:
+            gen.writeNull(Node.KEY_VALUE);
+            break;
+        }
+        return end();
+    }
+
+    @Override
+    protected Void visitIdentifier(Identifier node) {
+        begin("Identifier");
+        gen.write(Node.KEY_NAME, node.getName());
+        return end();
+    }
+}
@@ -44,7 +44,7 @@ public class Identifier extends Node implements Node.IIdentifier {
         JsonObjectBuilder jsonBuilder = Json.createObjectBuilder()
                 .add(KEY_TYPE, "Identifier")
                 .add(KEY_NAME, name)
-                //.add(KEY_LOC, loc.getAstWithJson())
+                //.add(KEY_LOC, getLocAstWithJson())
                 ;
         return jsonBuilder.build();
     }
@@ -187,6 +187,13 @@ public class Literal extends Node implements ILiteral {
         this.isDouble = isDouble;
     }
 
+    // String literal whose escape sequences have already been processed.
+    public static Literal createStringLiteral(String val) {
+        Literal literal = new Literal(LiteralType.STRING);
+        literal.strVal = val;
+        return literal;
+    }
+
     public Literal(String val, String pattern, String flags) {
         this(LiteralType.REG_EXP);
         this.regExpVal = val;
@@ -243,7 +250,7 @@ public class Literal extends Node implements ILiteral {
             jsonBuilder.addNull(KEY_VALUE);
             break;
         }
-        // jsonBuilder.add(KEY_LOC, loc.getAstWithJson());
+        // jsonBuilder.add(KEY_LOC, getLocAstWithJson());
         return jsonBuilder.build();
     }
 
@@ -373,47 +373,24 @@ public abstract class Node {
 
     public interface IPattern extends INode {}
 
-    protected class Position {
-        protected int line;
-        protected int column;
-
-        protected JsonObject getAstWithJson() {
-            JsonObjectBuilder jsonBuilder = Json.createObjectBuilder()
-                    .add(KEY_LINE, line)
-                    .add(KEY_COLUMN, column);
-            return jsonBuilder.build();
-        }
-    }
-
-    protected class SourceLocation {
-        protected SourceLocation() {
-            start = new Position();
-            end = new Position();
-        }
-
-        protected String source;
-        protected Position start;
-        protected Position end;
-
-        protected JsonObject getAstWithJson() {
-            JsonObjectBuilder jsonBuilder = Json.createObjectBuilder()
-                    .add(KEY_START, this.start.getAstWithJson())
-                    .add(KEY_END, this.end.getAstWithJson());
-            return jsonBuilder.build();
-        }
-    }
-
     protected int type;
-    public SourceLocation loc;
+
+    // Source location.  Positions are kept in primitive fields rather than
+    // in Position and SourceLocation objects, which were several objects
+    // per node.  startLine is 0 if the node has no location.
+    protected String source;
+    protected int startLine;
+    protected int startColumn;
+    protected int endLine;
+    protected int endColumn;
 
     public void setSourceLocation(String source, int startLine,
             int startColumn, int endLine, int endColumn) {
-        loc = new SourceLocation();
-        loc.source = source;
-        loc.start.line = startLine;
-        loc.start.column = startColumn;
-        loc.end.line = endLine;
-        loc.end.column = endColumn;
+        this.source = source;
+        this.startLine = startLine;
+        this.startColumn = startColumn;
+        this.endLine = endLine;
+        this.endColumn = endColumn;
     }
 
     public void setSourceLocation(String source, Token start, Token stop) {
@@ -421,6 +398,17 @@ public abstract class Node {
                 stop.getLine(), stop.getCharPositionInLine() + stop.getText().length());
     }
 
+    protected JsonObject getLocAstWithJson() {
+        JsonObjectBuilder jsonBuilder = Json.createObjectBuilder()
+                .add(KEY_START, Json.createObjectBuilder()
+                        .add(KEY_LINE, startLine)
+                        .add(KEY_COLUMN, startColumn))
+                .add(KEY_END, Json.createObjectBuilder()
+                        .add(KEY_LINE, endLine)
+                        .add(KEY_COLUMN, endColumn));
+        return jsonBuilder.build();
+    }
+
     public int getTypeId() {
         return type;
     }
@@ -80,7 +80,7 @@ public class Program extends Node implements Node.IProgram {
         JsonObject json = Json.createObjectBuilder()
                 .add(KEY_TYPE, "Program")
                 .add(KEY_BODY, bodyJsonBuilder)
-                // .add(KEY_LOC, loc.getAstWithJson())
+                // .add(KEY_LOC, getLocAstWithJson())
                 .build();
         return json;
     }
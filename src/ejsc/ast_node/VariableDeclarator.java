@@ -54,7 +54,7 @@ public class VariableDeclarator extends Node implements IVariableDeclarator {
         JsonObjectBuilder jsonBuilder = Json.createObjectBuilder()
                 .add(KEY_TYPE, "VariableDeclarator")
                 .add(KEY_ID, id.getEsTree());
-        // .add(KEY_LOC, loc.getAstWithJson());
+        // .add(KEY_LOC, getLocAstWithJson());
         if (init != null) {
             jsonBuilder.add(KEY_INIT, init.getEsTree());
         } else {